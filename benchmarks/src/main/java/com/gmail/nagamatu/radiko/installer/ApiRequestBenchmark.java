@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2012 Tatsuo Nagamatsu <nagamatu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.nagamatu.radiko.installer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * One full ApiRequest round trip against a loopback server: build and
+ * encode the request, POST it, and decode the gzipped answer, on each HTTP
+ * transport.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ApiRequestBenchmark {
+    @Param({ HttpTransports.APACHE, HttpTransports.URLCONNECTION })
+    public String engine;
+
+    private LoopbackServer mServer;
+    private HttpTransport mTransport;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mServer = new LoopbackServer(1024);
+        mTransport = HttpTransports.create(engine, 2, TransportProfile.DEFAULT);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mTransport.shutdown();
+        mServer.stop();
+    }
+
+    @Benchmark
+    public String apiRequest() throws IOException {
+        final HttpRequest request = HttpRequest.postForm(mServer.getUrl("/api"),
+                "version", "2",
+                "request", Base64.encodeToString(
+                        MarketRequest.create("loopback-auth-token", "3a5c1b2d4e6f7081", "jp.radiko.Player"),
+                        Base64.URL_SAFE));
+        request.addHeader("User-Agent", "Android-Market/2");
+        request.addHeader("Cookie", "ANDROIDSECURE=loopback-auth-token");
+
+        final HttpTransport.Response response = mTransport.execute(request);
+        try {
+            return MarketResponse.parse(new GZIPInputStream(new BufferedInputStream(
+                    response.getBody()))).getMarketDa();
+        } finally {
+            request.abort();
+        }
+    }
+}
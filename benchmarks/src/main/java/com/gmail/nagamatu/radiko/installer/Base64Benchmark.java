@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2012 Tatsuo Nagamatsu <nagamatu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.nagamatu.radiko.installer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Base64Benchmark {
+    /** Size of the raw data; the ApiRequest body is a few hundred bytes. */
+    @Param({ "256", "4096", "65536" })
+    public int size;
+
+    /** 0 is DEFAULT, 8 is URL_SAFE as used for the ApiRequest. */
+    @Param({ "0", "8" })
+    public int flags;
+
+    private byte[] mData;
+    private byte[] mEncoded;
+    private String mEncodedString;
+    private byte[] mEncodeOut;
+    private byte[] mDecodeOut;
+    private ByteBuffer mDirectData;
+    private ByteBuffer mDirectEncoded;
+    private ByteBuffer mDirectOut;
+
+    private static final OutputStream NULL = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    @Setup
+    public void setUp() {
+        mData = new byte[size];
+        new Random(size).nextBytes(mData);
+        mEncoded = Base64.encode(mData, flags);
+        mEncodedString = Base64.encodeToString(mData, flags);
+        mEncodeOut = new byte[Base64.encodedLength(size, flags)];
+        mDecodeOut = new byte[size];
+        mDirectData = ByteBuffer.allocateDirect(size);
+        mDirectData.put(mData).flip();
+        mDirectEncoded = ByteBuffer.allocateDirect(mEncoded.length);
+        mDirectEncoded.put(mEncoded).flip();
+        mDirectOut = ByteBuffer.allocateDirect(mEncoded.length);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return Base64.encode(mData, flags);
+    }
+
+    @Benchmark
+    public String encodeToString() {
+        return Base64.encodeToString(mData, flags);
+    }
+
+    @Benchmark
+    public int encodeIntoArray() {
+        return Base64.encode(mData, 0, mData.length, mEncodeOut, 0, flags);
+    }
+
+    @Benchmark
+    public int encodeDirect() {
+        mDirectData.rewind();
+        mDirectOut.clear();
+        return Base64.encode(mDirectData, mDirectOut, flags);
+    }
+
+    @Benchmark
+    public void encodeStream() throws IOException {
+        final Base64OutputStream out = new Base64OutputStream(NULL, flags);
+        out.write(mData, 0, mData.length);
+        out.close();
+    }
+
+    @Benchmark
+    public byte[] decode() {
+        return Base64.decode(mEncoded, flags);
+    }
+
+    @Benchmark
+    public byte[] decodeString() {
+        return Base64.decode(mEncodedString, flags);
+    }
+
+    @Benchmark
+    public int decodeIntoArray() {
+        return Base64.decode(mEncoded, 0, mEncoded.length, mDecodeOut, 0, flags);
+    }
+
+    @Benchmark
+    public int decodeCharsIntoArray() {
+        return Base64.decode(mEncodedString, 0, mEncodedString.length(), mDecodeOut, 0, flags);
+    }
+
+    @Benchmark
+    public int decodeDirect() {
+        mDirectEncoded.rewind();
+        mDirectOut.clear();
+        return Base64.decode(mDirectEncoded, mDirectOut, flags);
+    }
+}
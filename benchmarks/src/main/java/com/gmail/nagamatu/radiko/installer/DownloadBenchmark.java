@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2012 Tatsuo Nagamatsu <nagamatu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.nagamatu.radiko.installer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The APK download path against a loopback server: the single-stream copy
+ * loop of RadikoInstallerActivity.downloadResumable() and the segmented
+ * engine, on each HTTP transport.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DownloadBenchmark {
+    @Param({ "1048576", "16777216" })
+    public int size;
+
+    @Param({ "1", "4" })
+    public int segments;
+
+    @Param({ HttpTransports.APACHE, HttpTransports.URLCONNECTION })
+    public String engine;
+
+    /** See DownloadSink.SYNC_*. */
+    @Param({ "0", "2" })
+    public int syncPolicy;
+
+    private static final int BUFSIZE = 4096;
+    private static final long SYNC_INTERVAL = 1024 * 1024;
+
+    private LoopbackServer mServer;
+    private HttpTransport mTransport;
+    private File mFile;
+    private ProgressReporter mProgress;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mServer = new LoopbackServer(size);
+        mTransport = HttpTransports.create(engine, segments, TransportProfile.BULK);
+        mFile = File.createTempFile("download", ".apk");
+        mProgress = new ProgressReporter(new Executor() {
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }, new ProgressReporter.Listener() {
+            public void onProgress(int percent) {
+            }
+        });
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mTransport.shutdown();
+        mServer.stop();
+        mFile.delete();
+    }
+
+    @Benchmark
+    public long download() throws IOException {
+        final DownloadSink sink = new DownloadSink(mFile, 0, Long.MAX_VALUE, syncPolicy, SYNC_INTERVAL,
+                DownloadSink.DEFAULT_BUFFER_SIZE, true);
+        if (segments > 1) {
+            new SegmentedDownloader(mTransport, mServer.getUrl("/apk"), LoopbackServer.MARKETDA, sink, segments)
+                    .download(mProgress);
+            return mProgress.getDone();
+        }
+
+        final HttpRequest request = HttpRequest.get(mServer.getUrl("/apk"));
+        request.addHeader("User-Agent", "Android-Market/2");
+        request.addHeader("Cookie", "MarketDA=" + LoopbackServer.MARKETDA);
+        final HttpTransport.Response response = mTransport.execute(request);
+        long len = response.getContentLength();
+        final InputStream in = response.getBody();
+        mProgress.start(len, 0);
+        try {
+            sink.preallocate(len);
+            final byte[] buf = new byte[BUFSIZE];
+            while (len > 0) {
+                final int rsz = in.read(buf);
+                if (rsz < 0) {
+                    break;
+                }
+                sink.write(buf, 0, rsz);
+                len -= rsz;
+                mProgress.add(rsz);
+            }
+        } finally {
+            sink.close();
+            response.close();
+        }
+        if (len != 0) {
+            throw new IOException("Insufficient Response");
+        }
+        return mProgress.getDone();
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2012 Tatsuo Nagamatsu <nagamatu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.nagamatu.radiko.installer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many complete installs (login, lookup, download and verification)
+ * against a {@link MockMarketServer} and reports latency percentiles for
+ * every phase.
+ *
+ * <pre>
+ *   java -cp benchmarks.jar com.gmail.nagamatu.radiko.installer.LoadDriver \
+ *       --installs 200 --concurrency 16 --segments 1 \
+ *       --latency 50 --jitter 50 --bandwidth 4000000 --error-rate 0.01
+ * </pre>
+ *
+ * Each install runs its own {@link InstallerEngine} with a fresh device ID
+ * and an empty APK cache, over one shared transport.  The options of
+ * {@link MockMarketServer} configure the embedded server.  The engines'
+ * shared {@link Metrics} (connect, TLS, first byte, stalls, retries...) are
+ * written as JSON to {@code --metrics FILE} if given.  {@code --hedge 95}
+ * turns on hedged lookups at that latency percentile, and
+ * {@code --max-connections N} makes every install download through one
+ * {@link DownloadScheduler} allowing N connections.
+ */
+public class LoadDriver {
+    private static final String[] PHASES = { "login", "lookup", "download", "total" };
+    private static final int LOGIN = 0;
+    private static final int LOOKUP = 1;
+    private static final int DOWNLOAD = 2;
+    private static final int TOTAL = 3;
+
+    private int mInstalls = 100;
+    private int mConcurrency = 8;
+    private int mSegments = 1;
+    private String mTransportName;
+    private File mMetricsFile;
+    private double mHedgePercentile;
+    private DownloadScheduler mScheduler;
+    private final Metrics mMetrics = new Metrics();
+    private final MockMarketServer.Options mServerOptions = new MockMarketServer.Options();
+
+    /** Per phase, the duration of every successful install in nanoseconds. */
+    private final long[][] mSamples = new long[PHASES.length][];
+    private final AtomicInteger mDone = new AtomicInteger();
+    private final Map<String, Integer> mFailures = new TreeMap<String, Integer>();
+
+    public static void main(String[] args) throws Exception {
+        final LoadDriver driver = new LoadDriver();
+        for (int i = 0; i < args.length; ) {
+            final int next = i + 1 < args.length ? driver.parseOption(args, i) : i;
+            if (next == i) {
+                System.err.println("Unknown option " + args[i]);
+                System.exit(2);
+            }
+            i = next;
+        }
+        driver.run();
+    }
+
+    private int parseOption(String[] args, int i) {
+        final String arg = args[i];
+        final String value = args[i + 1];
+        if ("--installs".equals(arg)) {
+            mInstalls = Integer.parseInt(value);
+        } else if ("--concurrency".equals(arg)) {
+            mConcurrency = Integer.parseInt(value);
+        } else if ("--segments".equals(arg)) {
+            mSegments = Integer.parseInt(value);
+        } else if ("--transport".equals(arg)) {
+            mTransportName = value;
+        } else if ("--metrics".equals(arg)) {
+            mMetricsFile = new File(value);
+        } else if ("--hedge".equals(arg)) {
+            mHedgePercentile = Double.parseDouble(value);
+        } else if ("--max-connections".equals(arg)) {
+            final int connections = Integer.parseInt(value);
+            mScheduler = new DownloadScheduler(connections, connections);
+        } else {
+            return MockMarketServer.parseOption(mServerOptions, args, i);
+        }
+        return i + 2;
+    }
+
+    private void run() throws Exception {
+        for (int p = 0; p < PHASES.length; p++) {
+            mSamples[p] = new long[mInstalls];
+        }
+        final MockMarketServer server = new MockMarketServer(mServerOptions);
+        final HttpTransport transport = HttpTransports.create(mTransportName, mConcurrency * mSegments,
+                TransportProfile.BULK);
+        final File root = new File(System.getProperty("java.io.tmpdir"), "loaddriver-" + System.nanoTime());
+        final ExecutorService executor = Executors.newFixedThreadPool(mConcurrency);
+        final long start = System.nanoTime();
+        try {
+            for (int i = 0; i < mInstalls; i++) {
+                final int index = i;
+                executor.execute(new Runnable() {
+                    public void run() {
+                        install(server, transport, new File(root, String.valueOf(index)), index);
+                    }
+                });
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+        } finally {
+            transport.shutdown();
+            server.stop();
+            delete(root);
+        }
+        report(server, System.nanoTime() - start);
+        if (mMetricsFile != null) {
+            writeMetrics(mMetrics.snapshot());
+        }
+    }
+
+    private void writeMetrics(Metrics.Snapshot snapshot) throws IOException {
+        final Writer out = new OutputStreamWriter(new FileOutputStream(mMetricsFile), "UTF-8");
+        try {
+            out.write(snapshot.toJson());
+            out.write('\n');
+        } finally {
+            out.close();
+        }
+    }
+
+    private void install(MockMarketServer server, HttpTransport transport, File dir, int index) {
+        final long[] marks = new long[PHASES.length + 1];
+        final InstallerEngine engine = new InstallerEngine(transport,
+                DeviceProfile.forDevice(Long.toHexString(0x3a00000000000000L + index)), ApkCache.open(dir, Long.MAX_VALUE),
+                new InstallerEngine.Listener() {
+                    public void onProgress(int percent) {
+                    }
+
+                    public void onStatus(int status) {
+                        if (status == InstallerEngine.STATUS_REQUEST) {
+                            marks[LOOKUP] = System.nanoTime();
+                        } else if (status == InstallerEngine.STATUS_DOWNLOAD) {
+                            marks[DOWNLOAD] = System.nanoTime();
+                        }
+                    }
+
+                    public String onTokenRejected(String rejected) {
+                        return null;
+                    }
+
+                    public void onApkReady(String packageName, File apk) {
+                        marks[PHASES.length] = System.nanoTime();
+                    }
+
+                    public void onMetrics(Metrics.Snapshot snapshot) {
+                    }
+                }, new Executor() {
+                    public void execute(Runnable command) {
+                    }
+                });
+        engine.setEndpoints(server.getUrl("/login"), server.getUrl("/api"));
+        engine.setSegments(mSegments);
+        engine.setMetrics(mMetrics);
+        engine.setHedging(mHedgePercentile);
+        if (mScheduler != null) {
+            engine.setScheduler(mScheduler);
+        }
+        try {
+            marks[LOGIN] = System.nanoTime();
+            engine.login("load@example.com", "secret");
+            engine.run(new String[] { "jp.radiko.Player" });
+            final int n = mDone.getAndIncrement();
+            synchronized (mSamples) {
+                mSamples[LOGIN][n] = marks[LOOKUP] - marks[LOGIN];
+                mSamples[LOOKUP][n] = marks[DOWNLOAD] - marks[LOOKUP];
+                mSamples[DOWNLOAD][n] = marks[PHASES.length] - marks[DOWNLOAD];
+                mSamples[TOTAL][n] = marks[PHASES.length] - marks[LOGIN];
+            }
+        } catch (Exception e) {
+            final String key = e.getClass().getSimpleName() + ": " + e.getMessage();
+            synchronized (mFailures) {
+                final Integer count = mFailures.get(key);
+                mFailures.put(key, count == null ? 1 : count + 1);
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private void report(MockMarketServer server, long elapsedNanos) {
+        final int ok = mDone.get();
+        System.out.printf("%d installs, %d ok, %d failed in %.1f s (%.1f installs/s, %.1f MB/s served)%n",
+                mInstalls, ok, mInstalls - ok, elapsedNanos / 1e9, ok / (elapsedNanos / 1e9),
+                server.getBytesSent() / (elapsedNanos / 1e9) / (1024 * 1024));
+        System.out.printf("server: %d requests, %d injected errors, %d truncated bodies%n",
+                server.getRequests(), server.getErrors(), server.getTruncated());
+        System.out.printf("%-10s %10s %10s %10s %10s%n", "phase (ms)", "p50", "p95", "p99", "max");
+        for (int p = 0; p < PHASES.length; p++) {
+            final long[] samples;
+            synchronized (mSamples) {
+                samples = Arrays.copyOf(mSamples[p], ok);
+            }
+            Arrays.sort(samples);
+            System.out.printf("%-10s %10.1f %10.1f %10.1f %10.1f%n", PHASES[p], percentile(samples, 50),
+                    percentile(samples, 95), percentile(samples, 99), percentile(samples, 100));
+        }
+        for (Map.Entry<String, Integer> e : mFailures.entrySet()) {
+            System.out.printf("%6d x %s%n", e.getValue(), e.getKey());
+        }
+    }
+
+    /** Nearest-rank percentile of sorted nanosecond samples, in milliseconds. */
+    private static double percentile(long[] sorted, int pct) {
+        if (sorted.length == 0) {
+            return Double.NaN;
+        }
+        final int rank = Math.max(1, (int)Math.ceil(pct / 100.0 * sorted.length));
+        return sorted[rank - 1] / 1e6;
+    }
+
+    private static void delete(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
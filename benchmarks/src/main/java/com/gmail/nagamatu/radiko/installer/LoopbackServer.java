@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2012 Tatsuo Nagamatsu <nagamatu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.nagamatu.radiko.installer;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * In-process HTTP server standing in for the Market endpoints, so that the
+ * network benchmarks measure the client and not the Internet.
+ *
+ * <ul>
+ * <li>{@code /login} answers like ClientLogin.
+ * <li>{@code /api} answers every POST with a gzipped GetAssetResponse that
+ *     points at {@code /apk}.
+ * <li>{@code /apk} serves a random payload and honors single byte ranges.
+ * </ul>
+ */
+public class LoopbackServer {
+    public static final String MARKETDA = "1234567890123456789";
+
+    private final HttpServer mServer;
+    private final ExecutorService mExecutor;
+    private final byte[] mPayload;
+    private final byte[] mApiResponse;
+
+    public LoopbackServer(int payloadSize) throws IOException {
+        mPayload = new byte[payloadSize];
+        new Random(payloadSize).nextBytes(mPayload);
+
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 64);
+        mExecutor = Executors.newCachedThreadPool();
+        mServer.setExecutor(mExecutor);
+        mApiResponse = gzip(buildApiResponse(getUrl("/apk"), MARKETDA, payloadSize, 0));
+
+        mServer.createContext("/login", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                drain(exchange);
+                send(exchange, 200, "SID=sid\nLSID=lsid\nAuth=loopback-auth-token\n".getBytes("UTF-8"));
+            }
+        });
+        mServer.createContext("/api", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                drain(exchange);
+                exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+                send(exchange, 200, mApiResponse);
+            }
+        });
+        mServer.createContext("/apk", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                drain(exchange);
+                serveRange(exchange, mPayload);
+            }
+        });
+        mServer.start();
+    }
+
+    public String getUrl(String path) {
+        return "http://127.0.0.1:" + mServer.getAddress().getPort() + path;
+    }
+
+    public byte[] getPayload() {
+        return mPayload;
+    }
+
+    public void stop() {
+        mServer.stop(0);
+        mExecutor.shutdownNow();
+    }
+
+    static void serveRange(HttpExchange exchange, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("ETag", "\"" + body.length + "\"");
+        exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+        final String range = exchange.getRequestHeaders().getFirst("Range");
+        if (range == null || !range.startsWith("bytes=")) {
+            send(exchange, 200, body, 0, body.length);
+            return;
+        }
+        final int dash = range.indexOf('-');
+        final long first = Long.parseLong(range.substring(6, dash));
+        final String lastStr = range.substring(dash + 1).trim();
+        long last = lastStr.length() == 0 ? body.length - 1 : Math.min(Long.parseLong(lastStr), body.length - 1);
+        if (first >= body.length || first > last) {
+            exchange.getResponseHeaders().set("Content-Range", "bytes */" + body.length);
+            exchange.sendResponseHeaders(416, -1);
+            exchange.close();
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Range", "bytes " + first + "-" + last + "/" + body.length);
+        send(exchange, 206, body, (int)first, (int)(last - first + 1));
+    }
+
+    static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+        send(exchange, status, body, 0, body.length);
+    }
+
+    static void send(HttpExchange exchange, int status, byte[] body, int off, int len) throws IOException {
+        exchange.sendResponseHeaders(status, len);
+        final OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(body, off, len);
+        } catch (IOException e) {
+            // Client aborted the transfer; expected for segments and early
+            // terminated parses.
+        } finally {
+            exchange.close();
+        }
+    }
+
+    static void drain(HttpExchange exchange) throws IOException {
+        final InputStream in = exchange.getRequestBody();
+        final byte[] buf = new byte[4096];
+        while (in.read(buf) >= 0) {
+        }
+        in.close();
+    }
+
+    static byte[] gzip(byte[] data) throws IOException {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final GZIPOutputStream gz = new GZIPOutputStream(bos);
+        gz.write(data);
+        gz.close();
+        return bos.toByteArray();
+    }
+
+    /**
+     * Build a Response holding one GetAssetResponse, followed by
+     * {@code padding} bytes of unrelated response groups.
+     */
+    static byte[] buildApiResponse(String url, String marketDa, long size, int padding) throws IOException {
+        final ByteArrayOutputStream asset = new ByteArrayOutputStream();
+        writeTag(asset, 1, 3);
+        writeString(asset, 2, "4242424242424242424");
+        writeString(asset, 3, "radiko.jp");
+        writeString(asset, 4, "APPLICATION");
+        writeString(asset, 5, "jp.radiko.Player");
+        writeString(asset, 6, url);
+        writeTag(asset, 8, 0);
+        writeVarint(asset, size);
+        writeTag(asset, 12, 0);
+        writeVarint(asset, 42);
+        writeString(asset, 13, "MarketDA");
+        writeString(asset, 14, marketDa);
+        writeTag(asset, 1, 4);
+
+        final ByteArrayOutputStream context = new ByteArrayOutputStream();
+        writeTag(context, 1, 0);
+        writeVarint(context, 0);
+
+        final ByteArrayOutputStream res = new ByteArrayOutputStream();
+        writeTag(res, 1, 3);
+        writeBytes(res, 2, context.toByteArray());
+        writeBytes(res, 10, asset.toByteArray());
+        writeTag(res, 1, 4);
+
+        final Random random = new Random(padding);
+        while (padding > 0) {
+            final StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 200; i++) {
+                sb.append((char)('a' + random.nextInt(26)));
+            }
+            writeTag(res, 1, 3);
+            writeString(res, 3, sb.toString());
+            writeTag(res, 1, 4);
+            padding -= 206;
+        }
+        return res.toByteArray();
+    }
+
+    static void writeTag(OutputStream os, int field, int wireType) throws IOException {
+        writeVarint(os, (field << 3) | wireType);
+    }
+
+    static void writeVarint(OutputStream os, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            os.write((int)((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        os.write((int)value);
+    }
+
+    static void writeString(OutputStream os, int field, String value) throws IOException {
+        writeBytes(os, field, value.getBytes("UTF-8"));
+    }
+
+    static void writeBytes(OutputStream os, int field, byte[] value) throws IOException {
+        writeTag(os, field, 2);
+        writeVarint(os, value.length);
+        os.write(value);
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2012 Tatsuo Nagamatsu <nagamatu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.nagamatu.radiko.installer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of building the ApiRequest body, alone and as sent (Base64).
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MarketRequestBenchmark {
+    @Param({ "jp.radiko.Player", "com.example.a.much.longer.package.name.for.comparison" })
+    public String packageName;
+
+    private static final String DEVICE_ID = "3a5c1b2d4e6f7081";
+
+    private String mAuth;
+    private MarketRequest mTemplate;
+
+    @Setup
+    public void setUp() {
+        // ClientLogin tokens are a few hundred URL-safe characters.
+        final StringBuilder sb = new StringBuilder();
+        final Random random = new Random(1);
+        for (int i = 0; i < 300; i++) {
+            sb.append((char)('A' + random.nextInt(26)));
+        }
+        mAuth = sb.toString();
+        mTemplate = MarketRequest.forProfile(DeviceProfile.forDevice(DEVICE_ID));
+    }
+
+    @Benchmark
+    public byte[] createRequest() {
+        return MarketRequest.create(mAuth, DEVICE_ID, packageName);
+    }
+
+    @Benchmark
+    public byte[] buildFromTemplate() {
+        return mTemplate.build(mAuth, packageName);
+    }
+
+    @Benchmark
+    public String createRequestBase64() {
+        return Base64.encodeToString(MarketRequest.create(mAuth, DEVICE_ID, packageName), Base64.URL_SAFE);
+    }
+}
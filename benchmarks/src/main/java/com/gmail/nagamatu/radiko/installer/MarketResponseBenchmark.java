@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2012 Tatsuo Nagamatsu <nagamatu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.nagamatu.radiko.installer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Parsing a gzipped ApiRequest response: the streaming decoder against the
+ * original read-it-all-then-regex approach, which is kept here as the
+ * baseline.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MarketResponseBenchmark {
+    /** Bytes of unrelated data following the asset in the response. */
+    @Param({ "0", "4096", "65536" })
+    public int padding;
+
+    private static final Pattern PATTERN_URL = Pattern.compile("https?:\\/\\/[^:]+");
+    private static final Pattern PATTERN_MARKETDA = Pattern.compile("MarketDA.*?(\\d+)");
+
+    private byte[] mResponse;
+
+    @Setup
+    public void setUp() throws IOException {
+        mResponse = LoopbackServer.gzip(LoopbackServer.buildApiResponse(
+                "https://android.clients.google.com/market/download/Download?assetId=4242424242424242424",
+                LoopbackServer.MARKETDA, 3 * 1024 * 1024, padding));
+    }
+
+    @Benchmark
+    public String streaming() throws IOException {
+        final MarketResponse res = MarketResponse.parse(
+                new GZIPInputStream(new BufferedInputStream(new ByteArrayInputStream(mResponse))));
+        return res.getMarketDa();
+    }
+
+    @Benchmark
+    public String legacyRegex() throws IOException {
+        final String resString = streamToString(
+                new GZIPInputStream(new BufferedInputStream(new ByteArrayInputStream(mResponse))));
+        String downloadUrl = null;
+        Matcher m = PATTERN_URL.matcher(resString);
+        if (m.find()) {
+            downloadUrl = m.group();
+        }
+        m = PATTERN_MARKETDA.matcher(resString);
+        if (m.find() && downloadUrl != null) {
+            return m.group(1);
+        }
+        return null;
+    }
+
+    private static String streamToString(InputStream resultStream) throws IOException {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(resultStream));
+        final StringBuffer res = new StringBuffer();
+        String aLine = reader.readLine();
+        while (aLine != null) {
+            res.append(aLine + "\n");
+            aLine = reader.readLine();
+        }
+        return res.toString();
+    }
+}
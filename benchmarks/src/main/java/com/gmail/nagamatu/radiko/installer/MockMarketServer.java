@@ -0,0 +1,386 @@
+/*
+ * Copyright (C) 2012 Tatsuo Nagamatsu <nagamatu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.nagamatu.radiko.installer;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Stand-in for the Market endpoints with configurable faults, for offline
+ * end-to-end runs and load tests of the real client.
+ *
+ * <ul>
+ * <li>{@code /login} answers like ClientLogin, with SID, LSID and Auth
+ *     lines.
+ * <li>{@code /api} answers a POST carrying the issued token in its
+ *     ANDROIDSECURE cookie with a gzipped GetAssetResponse pointing at
+ *     {@code /apk}, and any other with 403.
+ * <li>{@code /apk} serves a valid APK-sized ZIP, honors single byte
+ *     ranges, If-Range and If-None-Match, and checks the MarketDA cookie.
+ * </ul>
+ *
+ * Every request is delayed by the configured latency and fails with 503 at
+ * the configured error rate; APK bodies are sent at the configured
+ * bandwidth and cut short at the configured truncation rate.
+ *
+ * <pre>
+ *   java -cp benchmarks.jar com.gmail.nagamatu.radiko.installer.MockMarketServer \
+ *       --port 8080 --latency 80 --bandwidth 2000000 --error-rate 0.01
+ * </pre>
+ */
+public class MockMarketServer {
+    public static final String AUTH_TOKEN = "mock-auth-token";
+    public static final String MARKETDA = LoopbackServer.MARKETDA;
+
+    private static final int CHUNK = 16 * 1024;
+
+    /** What the server does; set the fields before passing it in. */
+    public static class Options {
+        /** TCP port, 0 for any free one. */
+        public int port;
+        /** Size of the served APK in bytes. */
+        public int apkSize = 4 * 1024 * 1024;
+        /** Delay before every response's headers. */
+        public long latencyMillis;
+        /** Up to this much more delay, chosen at random per request. */
+        public long jitterMillis;
+        /** Bytes per second per APK response, 0 for unlimited. */
+        public long bandwidth;
+        /** Fraction of requests answered with 503. */
+        public double errorRate;
+        /** Fraction of APK responses whose body stops short. */
+        public double truncateRate;
+    }
+
+    private final Options mOptions;
+    private final HttpServer mServer;
+    private final ExecutorService mExecutor;
+    private final byte[] mApk;
+    private final String mETag;
+    private final byte[] mApiResponse;
+    private final Random mRandom = new Random();
+
+    private final AtomicLong mRequests = new AtomicLong();
+    private final AtomicLong mErrors = new AtomicLong();
+    private final AtomicLong mTruncated = new AtomicLong();
+    private final AtomicLong mBytesSent = new AtomicLong();
+
+    public MockMarketServer(Options options) throws IOException {
+        mOptions = options;
+        mApk = buildApk(options.apkSize);
+        mETag = "\"" + toHex(digest("SHA-1", mApk)).substring(0, 16) + "\"";
+
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), options.port), 256);
+        mExecutor = Executors.newCachedThreadPool();
+        mServer.setExecutor(mExecutor);
+        mApiResponse = LoopbackServer.gzip(buildApiResponse(getUrl("/apk"), MARKETDA, mApk.length,
+                Base64.encodeToString(digest("SHA-1", mApk), Base64.URL_SAFE | Base64.NO_WRAP)));
+
+        mServer.createContext("/login", new Handler() {
+            void serve(HttpExchange exchange) throws IOException {
+                LoopbackServer.send(exchange, 200,
+                        ("SID=mock-sid\nLSID=mock-lsid\nAuth=" + AUTH_TOKEN + "\n").getBytes("UTF-8"));
+            }
+        });
+        mServer.createContext("/api", new Handler() {
+            void serve(HttpExchange exchange) throws IOException {
+                if (!hasCookie(exchange, "ANDROIDSECURE=" + AUTH_TOKEN)) {
+                    LoopbackServer.send(exchange, 403, new byte[0]);
+                    return;
+                }
+                exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+                LoopbackServer.send(exchange, 200, mApiResponse);
+            }
+        });
+        mServer.createContext("/apk", new Handler() {
+            void serve(HttpExchange exchange) throws IOException {
+                serveApk(exchange);
+            }
+        });
+        mServer.start();
+    }
+
+    public String getUrl(String path) {
+        return "http://127.0.0.1:" + mServer.getAddress().getPort() + path;
+    }
+
+    public byte[] getApk() {
+        return mApk;
+    }
+
+    public long getRequests() {
+        return mRequests.get();
+    }
+
+    /** @return the number of injected 503s. */
+    public long getErrors() {
+        return mErrors.get();
+    }
+
+    /** @return the number of APK bodies cut short. */
+    public long getTruncated() {
+        return mTruncated.get();
+    }
+
+    public long getBytesSent() {
+        return mBytesSent.get();
+    }
+
+    public void stop() {
+        mServer.stop(0);
+        mExecutor.shutdownNow();
+    }
+
+    /** Applies latency and error injection around an endpoint. */
+    private abstract class Handler implements HttpHandler {
+        abstract void serve(HttpExchange exchange) throws IOException;
+
+        public void handle(HttpExchange exchange) throws IOException {
+            mRequests.incrementAndGet();
+            LoopbackServer.drain(exchange);
+            long delay = mOptions.latencyMillis;
+            final boolean fail;
+            synchronized (mRandom) {
+                if (mOptions.jitterMillis > 0) {
+                    delay += (long)(mRandom.nextDouble() * mOptions.jitterMillis);
+                }
+                fail = mRandom.nextDouble() < mOptions.errorRate;
+            }
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    exchange.close();
+                    return;
+                }
+            }
+            if (fail) {
+                mErrors.incrementAndGet();
+                exchange.sendResponseHeaders(503, -1);
+                exchange.close();
+                return;
+            }
+            serve(exchange);
+        }
+    }
+
+    private void serveApk(HttpExchange exchange) throws IOException {
+        if (!hasCookie(exchange, "MarketDA=" + MARKETDA)) {
+            LoopbackServer.send(exchange, 403, new byte[0]);
+            return;
+        }
+        exchange.getResponseHeaders().set("ETag", mETag);
+        exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+        if (mETag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+        }
+
+        long first = 0;
+        long last = mApk.length - 1;
+        final String range = exchange.getRequestHeaders().getFirst("Range");
+        final String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+        final boolean partial = range != null && range.startsWith("bytes=")
+                && (ifRange == null || ifRange.equals(mETag));
+        if (partial) {
+            final int dash = range.indexOf('-');
+            first = Long.parseLong(range.substring(6, dash).trim());
+            final String lastStr = range.substring(dash + 1).trim();
+            if (lastStr.length() > 0) {
+                last = Math.min(Long.parseLong(lastStr), last);
+            }
+            if (first > last) {
+                exchange.getResponseHeaders().set("Content-Range", "bytes */" + mApk.length);
+                exchange.sendResponseHeaders(416, -1);
+                exchange.close();
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + first + "-" + last + "/" + mApk.length);
+        }
+
+        final int len = (int)(last - first + 1);
+        int send = len;
+        synchronized (mRandom) {
+            if (mRandom.nextDouble() < mOptions.truncateRate) {
+                send = mRandom.nextInt(len);
+            }
+        }
+        if (send < len) {
+            mTruncated.incrementAndGet();
+        }
+        exchange.sendResponseHeaders(partial ? 206 : 200, len);
+        final OutputStream out = exchange.getResponseBody();
+        try {
+            final long start = System.nanoTime();
+            int sent = 0;
+            while (sent < send) {
+                final int n = Math.min(CHUNK, send - sent);
+                out.write(mApk, (int)first + sent, n);
+                sent += n;
+                mBytesSent.addAndGet(n);
+                throttle(start, sent);
+            }
+            out.flush();
+        } catch (IOException e) {
+            // Client aborted the transfer; expected for segments.
+        } finally {
+            // Closing a fixed-length body early drops the connection, which
+            // is exactly what a truncated transfer looks like.
+            try {
+                exchange.close();
+            } catch (RuntimeException e) {
+                // ignore
+            }
+        }
+    }
+
+    private void throttle(long startNanos, long sent) {
+        if (mOptions.bandwidth <= 0) {
+            return;
+        }
+        final long due = startNanos + sent * 1000000000L / mOptions.bandwidth;
+        final long wait = due - System.nanoTime();
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static boolean hasCookie(HttpExchange exchange, String cookie) {
+        final String value = exchange.getRequestHeaders().getFirst("Cookie");
+        return value != null && value.indexOf(cookie) >= 0;
+    }
+
+    /** A ZIP of about {@code size} bytes which passes the client's checks. */
+    static byte[] buildApk(int size) throws IOException {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream(size + 4096);
+        final ZipOutputStream zip = new ZipOutputStream(bos);
+        final Random random = new Random(size);
+        zip.putNextEntry(new ZipEntry("AndroidManifest.xml"));
+        zip.write(new byte[2048]);
+        zip.closeEntry();
+        final byte[] data = new byte[64 * 1024];
+        int i = 0;
+        while (bos.size() < size - data.length) {
+            random.nextBytes(data);
+            zip.putNextEntry(new ZipEntry("res/raw/blob" + i++));
+            zip.write(data);
+            zip.closeEntry();
+        }
+        zip.close();
+        return bos.toByteArray();
+    }
+
+    /** A Response holding one GetAssetResponse with the asset's SHA-1. */
+    static byte[] buildApiResponse(String url, String marketDa, long size, String signature) throws IOException {
+        final ByteArrayOutputStream asset = new ByteArrayOutputStream();
+        LoopbackServer.writeTag(asset, 1, 3);
+        LoopbackServer.writeString(asset, 2, "4242424242424242424");
+        LoopbackServer.writeString(asset, 3, "radiko.jp");
+        LoopbackServer.writeString(asset, 4, "APPLICATION");
+        LoopbackServer.writeString(asset, 5, "jp.radiko.Player");
+        LoopbackServer.writeString(asset, 6, url);
+        LoopbackServer.writeString(asset, 7, signature);
+        LoopbackServer.writeTag(asset, 8, 0);
+        LoopbackServer.writeVarint(asset, size);
+        LoopbackServer.writeTag(asset, 12, 0);
+        LoopbackServer.writeVarint(asset, 42);
+        LoopbackServer.writeString(asset, 13, "MarketDA");
+        LoopbackServer.writeString(asset, 14, marketDa);
+        LoopbackServer.writeTag(asset, 1, 4);
+
+        final ByteArrayOutputStream res = new ByteArrayOutputStream();
+        LoopbackServer.writeTag(res, 1, 3);
+        LoopbackServer.writeBytes(res, 2, new byte[] { 8, 0 });
+        LoopbackServer.writeBytes(res, 10, asset.toByteArray());
+        LoopbackServer.writeTag(res, 1, 4);
+        return res.toByteArray();
+    }
+
+    private static byte[] digest(String algorithm, byte[] data) {
+        try {
+            return MessageDigest.getInstance(algorithm).digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] b) {
+        final StringBuilder sb = new StringBuilder();
+        for (byte x : b) {
+            sb.append(String.format("%02x", x & 0xff));
+        }
+        return sb.toString();
+    }
+
+    /** Parse the server options shared with {@link LoadDriver}; unknown ones are left alone. */
+    static int parseOption(Options options, String[] args, int i) {
+        final String arg = args[i];
+        final String value = args[i + 1];
+        if ("--port".equals(arg)) {
+            options.port = Integer.parseInt(value);
+        } else if ("--apk-size".equals(arg)) {
+            options.apkSize = Integer.parseInt(value);
+        } else if ("--latency".equals(arg)) {
+            options.latencyMillis = Long.parseLong(value);
+        } else if ("--jitter".equals(arg)) {
+            options.jitterMillis = Long.parseLong(value);
+        } else if ("--bandwidth".equals(arg)) {
+            options.bandwidth = Long.parseLong(value);
+        } else if ("--error-rate".equals(arg)) {
+            options.errorRate = Double.parseDouble(value);
+        } else if ("--truncate-rate".equals(arg)) {
+            options.truncateRate = Double.parseDouble(value);
+        } else {
+            return i;
+        }
+        return i + 2;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final Options options = new Options();
+        for (int i = 0; i < args.length; ) {
+            final int next = i + 1 < args.length ? parseOption(options, args, i) : i;
+            if (next == i) {
+                System.err.println("Unknown option " + args[i]);
+                System.exit(2);
+            }
+            i = next;
+        }
+        final MockMarketServer server = new MockMarketServer(options);
+        System.out.println("login: " + server.getUrl("/login"));
+        System.out.println("api:   " + server.getUrl("/api"));
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2012 Tatsuo Nagamatsu <nagamatu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.nagamatu.radiko.installer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Varint encoding and decoding by {@link ProtoWriter} and
+ * {@link ProtoReader}, for one-, two-, four- and ten-byte values; the
+ * reader is measured on its fast path (enough bytes at hand) and on the
+ * byte-by-byte one (a varint at the end of the input).
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VarintBenchmark {
+    @Param({ "100", "300", "2009011", "-1" })
+    public int value;
+
+    private final byte[] mOut = new byte[16];
+    private byte[] mPadded;
+    private byte[] mExact;
+
+    @Setup
+    public void setUp() {
+        final ProtoWriter writer = new ProtoWriter(mOut);
+        writer.writeInt32(1, value);
+        mExact = writer.toByteArray();
+        mPadded = new byte[mExact.length + 16];
+        System.arraycopy(mExact, 0, mPadded, 0, mExact.length);
+    }
+
+    @Benchmark
+    public int writeInt32() {
+        final ProtoWriter writer = new ProtoWriter(mOut);
+        writer.writeInt32(1, value);
+        return writer.getPosition();
+    }
+
+    @Benchmark
+    public int readInt32() throws IOException {
+        final ProtoReader reader = new ProtoReader(mPadded, 0, mExact.length + 16);
+        reader.readTag();
+        return reader.readInt32();
+    }
+
+    @Benchmark
+    public int readInt32AtEnd() throws IOException {
+        final ProtoReader reader = new ProtoReader(mExact, 0, mExact.length);
+        reader.readTag();
+        return reader.readInt32();
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2012 Tatsuo Nagamatsu <nagamatu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.nagamatu.radiko.installer;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.params.HttpConnectionParams;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * {@link HttpTransport} on the Apache HttpClient bundled with Android.
+ */
+class ApacheTransport implements HttpTransport {
+    private final HttpClient mClient;
+    private final ConnectionWarmer mWarmer;
+
+    public ApacheTransport(HttpClient client) {
+        mClient = client;
+        mWarmer = new ConnectionWarmer(client);
+    }
+
+    public Response execute(HttpRequest request) throws IOException {
+        final HttpRequestBase base;
+        if (HttpRequest.POST.equals(request.getMethod())) {
+            final HttpPost post = new HttpPost(request.getUrl());
+            final ByteArrayEntity entity = new ByteArrayEntity(request.getBody());
+            entity.setContentType(request.getContentType());
+            post.setEntity(entity);
+            base = post;
+        } else {
+            base = new HttpGet(request.getUrl());
+        }
+        for (int i = 0; i < request.getHeaderCount(); i++) {
+            base.addHeader(request.getHeaderName(i), request.getHeaderValue(i));
+        }
+        // Request parameters override the client's, including for a
+        // pooled connection's socket timeout.
+        if (request.getConnectTimeout() > 0) {
+            HttpConnectionParams.setConnectionTimeout(base.getParams(), request.getConnectTimeout());
+            // Waiting for a free pooled connection counts as connecting.
+            ConnManagerParams.setTimeout(base.getParams(), request.getConnectTimeout());
+        }
+        if (request.getReadTimeout() > 0) {
+            HttpConnectionParams.setSoTimeout(base.getParams(), request.getReadTimeout());
+        }
+        request.setAbortAction(new Runnable() {
+            public void run() {
+                base.abort();
+            }
+        });
+        RequestTiming.attach(request.getTiming());
+        try {
+            return new ApacheResponse(mClient.execute(base));
+        } finally {
+            RequestTiming.detach();
+        }
+    }
+
+    public void warm(String url, int count) {
+        mWarmer.warm(url, count);
+    }
+
+    public void shutdown() {
+        mWarmer.shutdown();
+        mClient.getConnectionManager().shutdown();
+    }
+
+    private static class ApacheResponse implements Response {
+        private final HttpResponse mResponse;
+        private InputStream mBody;
+
+        ApacheResponse(HttpResponse response) {
+            mResponse = response;
+        }
+
+        public int getStatus() {
+            return mResponse.getStatusLine().getStatusCode();
+        }
+
+        public String getReason() {
+            return mResponse.getStatusLine().getReasonPhrase();
+        }
+
+        public String getHeader(String name) {
+            final Header header = mResponse.getFirstHeader(name);
+            return header != null ? header.getValue() : null;
+        }
+
+        public long getContentLength() {
+            final HttpEntity entity = mResponse.getEntity();
+            return entity != null ? entity.getContentLength() : 0;
+        }
+
+        public InputStream getBody() throws IOException {
+            if (mBody == null) {
+                final HttpEntity entity = mResponse.getEntity();
+                mBody = entity != null ? entity.getContent() : new ByteArrayInputStream(new byte[0]);
+            }
+            return mBody;
+        }
+
+        public void close() throws IOException {
+            if (mBody != null) {
+                mBody.close();
+            } else if (mResponse.getEntity() != null) {
+                mResponse.getEntity().consumeContent();
+            }
+        }
+    }
+}
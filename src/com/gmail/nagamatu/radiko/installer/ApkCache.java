@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2012 Tatsuo Nagamatsu <nagamatu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.nagamatu.radiko.installer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Downloaded APKs kept on disk between runs, keyed by package and version
+ * code, together with the validators needed to revalidate them with a
+ * conditional GET.
+ *
+ * <p>The cache holds at most a fixed number of bytes; the least recently
+ * used entries are deleted to make room.  Everything known about the
+ * entries lives in a small index file next to them, replaced atomically, so
+ * a lookup never scans the directory.  A file the index does not mention is
+ * not part of the cache.
+ *
+ * <p>An APK which is being downloaded or has been handed out can be
+ * {@linkplain #pin pinned}; eviction passes over pinned entries, so the
+ * cache may stay over budget until a later {@link #put} after they have
+ * been released.
+ */
+class ApkCache {
+    private static final String INDEX_FILE = "index";
+    private static final String SUFFIX_SIZE = ".size";
+    private static final String SUFFIX_USED = ".used";
+    private static final String SUFFIX_ETAG = ".etag";
+    private static final String SUFFIX_LAST_MODIFIED = ".lastModified";
+
+    /** A cached APK. */
+    static class Entry {
+        final String key;
+        final File file;
+        long size;
+        long lastUsed;
+        String etag;
+        String lastModified;
+
+        Entry(String key, File file) {
+            this.key = key;
+            this.file = file;
+        }
+    }
+
+    /** Keeps one APK from being evicted until {@link #release()}. */
+    class Pin {
+        private final String mKey;
+        private boolean mReleased;
+
+        Pin(String key) {
+            mKey = key;
+        }
+
+        /** Let the APK be evicted again.  Further calls do nothing. */
+        public void release() {
+            synchronized (ApkCache.this) {
+                if (mReleased) {
+                    return;
+                }
+                mReleased = true;
+                final int count = mPinned.get(mKey);
+                if (count == 1) {
+                    mPinned.remove(mKey);
+                } else {
+                    mPinned.put(mKey, count - 1);
+                }
+            }
+        }
+    }
+
+    private final File mDir;
+    private final File mIndex;
+    private final long mBudget;
+    /** In access order: the eldest entry is evicted first. */
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final Map<String, Integer> mPinned = new HashMap<String, Integer>();
+    private long mTotal;
+
+    private ApkCache(File dir, long budget) {
+        mDir = dir;
+        mIndex = new File(dir, INDEX_FILE);
+        mBudget = budget;
+    }
+
+    /**
+     * Load the cache kept in {@code dir}, creating the directory if needed.
+     * A missing or unreadable index results in an empty cache.
+     *
+     * @param budget the number of bytes the cached files may occupy
+     */
+    public static ApkCache open(File dir, long budget) {
+        final ApkCache cache = new ApkCache(dir, budget);
+        dir.mkdirs();
+        if (!cache.mIndex.exists()) {
+            return cache;
+        }
+        final Properties props = new Properties();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(cache.mIndex);
+            props.load(in);
+            cache.load(props);
+        } catch (Exception e) {
+            e.printStackTrace();
+            cache.mEntries.clear();
+            cache.mTotal = 0;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return cache;
+    }
+
+    private void load(Properties props) {
+        final List<Entry> entries = new ArrayList<Entry>();
+        for (Object name : props.keySet()) {
+            final String k = (String)name;
+            if (!k.endsWith(SUFFIX_SIZE)) {
+                continue;
+            }
+            final String key = k.substring(0, k.length() - SUFFIX_SIZE.length());
+            final Entry e = new Entry(key, fileFor(key));
+            e.size = Long.parseLong(props.getProperty(k));
+            e.lastUsed = Long.parseLong(props.getProperty(key + SUFFIX_USED, "0"));
+            e.etag = props.getProperty(key + SUFFIX_ETAG);
+            e.lastModified = props.getProperty(key + SUFFIX_LAST_MODIFIED);
+            entries.add(e);
+        }
+        Collections.sort(entries, new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                return a.lastUsed < b.lastUsed ? -1 : a.lastUsed > b.lastUsed ? 1 : 0;
+            }
+        });
+        for (Entry e : entries) {
+            mEntries.put(e.key, e);
+            mTotal += e.size;
+        }
+    }
+
+    /**
+     * @return the cached APK of {@code packageName} at {@code versionCode},
+     *         or null if there is none or its file has gone.
+     */
+    public synchronized Entry get(String packageName, int versionCode) throws IOException {
+        final String key = key(packageName, versionCode);
+        final Entry e = mEntries.get(key);
+        if (e == null) {
+            return null;
+        }
+        if (e.file.length() != e.size) {
+            remove(e);
+            store();
+            return null;
+        }
+        return e;
+    }
+
+    /**
+     * @return where the APK of {@code packageName} at {@code versionCode}
+     *         is kept once it is in the cache.
+     */
+    public File getFile(String packageName, int versionCode) {
+        return fileFor(key(packageName, versionCode));
+    }
+
+    /**
+     * Keep the APK of {@code packageName} at {@code versionCode} out of
+     * eviction, whether or not it is in the cache yet.
+     */
+    public synchronized Pin pin(String packageName, int versionCode) {
+        final String key = key(packageName, versionCode);
+        final Integer count = mPinned.get(key);
+        mPinned.put(key, count == null ? 1 : count + 1);
+        return new Pin(key);
+    }
+
+    /** Record that {@code e} was served and write the index out. */
+    public synchronized void touch(Entry e) throws IOException {
+        e.lastUsed = System.currentTimeMillis();
+        mEntries.get(e.key);
+        store();
+    }
+
+    /**
+     * Add the APK which has just been written to
+     * {@link #getFile(String, int)}, evicting older entries if the cache is
+     * over budget.  The new entry itself and pinned entries are always
+     * kept.
+     */
+    public synchronized Entry put(String packageName, int versionCode, String etag, String lastModified)
+            throws IOException {
+        final String key = key(packageName, versionCode);
+        final Entry old = mEntries.remove(key);
+        if (old != null) {
+            mTotal -= old.size;
+        }
+        final Entry e = new Entry(key, fileFor(key));
+        e.size = e.file.length();
+        e.lastUsed = System.currentTimeMillis();
+        e.etag = etag;
+        e.lastModified = lastModified;
+        mEntries.put(key, e);
+        mTotal += e.size;
+
+        final Iterator<Entry> it = mEntries.values().iterator();
+        while (mTotal > mBudget && it.hasNext()) {
+            final Entry eldest = it.next();
+            if (eldest != e && !mPinned.containsKey(eldest.key)) {
+                it.remove();
+                mTotal -= eldest.size;
+                eldest.file.delete();
+            }
+        }
+        store();
+        return e;
+    }
+
+    /** Drop {@code e}, e.g. after it turned out to be unusable. */
+    public synchronized void invalidate(Entry e) throws IOException {
+        if (mEntries.get(e.key) == e) {
+            remove(e);
+            store();
+        }
+    }
+
+    /** @return the number of bytes held by the cached files. */
+    public synchronized long getTotalSize() {
+        return mTotal;
+    }
+
+    private void remove(Entry e) {
+        mEntries.remove(e.key);
+        mTotal -= e.size;
+        e.file.delete();
+    }
+
+    private File fileFor(String key) {
+        return new File(mDir, key.replace('/', '-') + ".apk");
+    }
+
+    private static String key(String packageName, int versionCode) {
+        return packageName + "/" + versionCode;
+    }
+
+    private void store() throws IOException {
+        final Properties props = new Properties();
+        for (Entry e : mEntries.values()) {
+            props.setProperty(e.key + SUFFIX_SIZE, String.valueOf(e.size));
+            props.setProperty(e.key + SUFFIX_USED, String.valueOf(e.lastUsed));
+            if (e.etag != null) {
+                props.setProperty(e.key + SUFFIX_ETAG, e.etag);
+            }
+            if (e.lastModified != null) {
+                props.setProperty(e.key + SUFFIX_LAST_MODIFIED, e.lastModified);
+            }
+        }
+        final File tmp = new File(mIndex.getPath() + ".tmp");
+        final FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            props.store(out, null);
+            out.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(mIndex)) {
+            throw new IOException("Cannot update " + mIndex);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2012 Tatsuo Nagamatsu <nagamatu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.nagamatu.radiko.installer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Auth tokens kept on disk between runs, keyed by account and service.
+ *
+ * <p>ClientLogin does not say how long a token lives, so every entry is
+ * given a fixed lifetime when stored.  An entry is served until it expires,
+ * and reported as due for refresh once less than the refresh-ahead window
+ * is left, so that a new token can be fetched in the background while the
+ * old one is still in use.
+ */
+class AuthTokenCache {
+    private static final String SUFFIX_TOKEN = ".token";
+    private static final String SUFFIX_EXPIRES = ".expires";
+
+    private final File mFile;
+    private final Properties mProps = new Properties();
+    private final long mRefreshAhead;
+
+    private AuthTokenCache(File file, long refreshAhead) {
+        mFile = file;
+        mRefreshAhead = refreshAhead;
+    }
+
+    /**
+     * Load the cache stored in {@code file}.  A missing or unreadable file
+     * results in an empty cache.
+     *
+     * @param refreshAhead how long before expiry an entry is reported by
+     *        {@link #needsRefresh(String, String)}, in milliseconds
+     */
+    public static AuthTokenCache open(File file, long refreshAhead) {
+        final AuthTokenCache cache = new AuthTokenCache(file, refreshAhead);
+        if (!file.exists()) {
+            return cache;
+        }
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            cache.mProps.load(in);
+        } catch (Exception e) {
+            e.printStackTrace();
+            cache.mProps.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return cache;
+    }
+
+    /** @return the cached token, or null if there is none or it expired. */
+    public synchronized String get(String account, String service) {
+        final String key = key(account, service);
+        if (getExpires(key) <= System.currentTimeMillis()) {
+            return null;
+        }
+        return mProps.getProperty(key + SUFFIX_TOKEN);
+    }
+
+    /**
+     * @return true if the entry is missing, expired, or will expire within
+     *         the refresh-ahead window.
+     */
+    public synchronized boolean needsRefresh(String account, String service) {
+        return getExpires(key(account, service)) - mRefreshAhead <= System.currentTimeMillis();
+    }
+
+    /**
+     * Store {@code token} for {@code lifetime} milliseconds and write the
+     * cache out.  A token which is already cached keeps its expiry: getting
+     * it again does not make it live any longer.
+     */
+    public synchronized void put(String account, String service, String token, long lifetime) throws IOException {
+        final String key = key(account, service);
+        if (token.equals(mProps.getProperty(key + SUFFIX_TOKEN))) {
+            return;
+        }
+        mProps.setProperty(key + SUFFIX_TOKEN, token);
+        mProps.setProperty(key + SUFFIX_EXPIRES, String.valueOf(System.currentTimeMillis() + lifetime));
+        store();
+    }
+
+    /**
+     * Drop the entry, e.g. after the server rejected it.  Only removes it
+     * if it still holds {@code token}, so that a token refreshed meanwhile
+     * is kept.
+     *
+     * @return the token that was dropped, or null if nothing was.
+     */
+    public synchronized String invalidate(String account, String service, String token) throws IOException {
+        final String key = key(account, service);
+        final String cached = mProps.getProperty(key + SUFFIX_TOKEN);
+        if (cached == null || (token != null && !token.equals(cached))) {
+            return null;
+        }
+        mProps.remove(key + SUFFIX_TOKEN);
+        mProps.remove(key + SUFFIX_EXPIRES);
+        store();
+        return cached;
+    }
+
+    private long getExpires(String key) {
+        try {
+            return Long.parseLong(mProps.getProperty(key + SUFFIX_EXPIRES, "0"));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static String key(String account, String service) {
+        return account + "/" + service;
+    }
+
+    private void store() throws IOException {
+        final File tmp = new File(mFile.getPath() + ".tmp");
+        final FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            mProps.store(out, null);
+            out.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(mFile)) {
+            throw new IOException("Cannot update " + mFile);
+        }
+    }
+}
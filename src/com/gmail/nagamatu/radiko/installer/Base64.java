@@ -17,6 +17,7 @@
 package com.gmail.nagamatu.radiko.installer;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 
 /**
  * Utilities for encoding and decoding the Base64 representation of
@@ -72,11 +73,19 @@ public class Base64 {
         public byte[] output;
         public int op;
 
+        /**
+         * Position in this.output at which each call to process()
+         * starts writing.  Zero unless the caller is filling part of
+         * its own array.
+         */
+        public int outputOffset;
+
         /**
          * Encode/decode another block of input data.  this.output is
          * provided by the caller, and must be big enough to hold all
-         * the coded data.  On exit, this.opwill be set to the length
-         * of the coded data.
+         * the coded data.  On exit, this.op will be set to the offset
+         * just past the coded data, i.e. to its length when
+         * outputOffset is zero.
          *
          * @param finish true if this is the final call to process for
          *        this object.  Will finalize the coder state and
@@ -115,7 +124,27 @@ public class Base64 {
      * incorrect padding
      */
     public static byte[] decode(String str, int flags) {
-        return decode(str.getBytes(), flags);
+        return decode((CharSequence) str, flags);
+    }
+
+    /**
+     * Decode the Base64-encoded data in input and return the data in
+     * a new byte array.  The characters are read directly; anything
+     * outside ISO-8859-1 is treated like any other non-alphabet
+     * character.
+     *
+     * @param input  the characters to decode
+     * @param flags  controls certain features of the decoded output.
+     *               Pass {@code DEFAULT} to decode standard Base64.
+     *
+     * @throws IllegalArgumentException if the input contains
+     * incorrect padding
+     */
+    public static byte[] decode(CharSequence input, int flags) {
+        final int len = input.length();
+        final byte[] output = new byte[decodedLength(input, 0, len, flags)];
+        decode(input, 0, len, output, 0, flags);
+        return output;
     }
 
     /**
@@ -153,24 +182,164 @@ public class Base64 {
      * incorrect padding
      */
     public static byte[] decode(byte[] input, int offset, int len, int flags) {
-        // Allocate space for the most data the input could represent.
-        // (It could contain less if it contains whitespace, etc.)
-        Decoder decoder = new Decoder(flags, new byte[len*3/4]);
+        // Count the data characters first so that the output is
+        // allocated at exactly the right size and never copied.
+        final byte[] output = new byte[decodedLength(input, offset, len, flags)];
+        decode(input, offset, len, output, 0, flags);
+        return output;
+    }
 
+    /**
+     * Decode the Base64-encoded data in input into a caller-supplied
+     * array.
+     *
+     * @param input     the data to decode
+     * @param offset    the position within the input array at which to start
+     * @param len       the number of bytes of input to decode
+     * @param output    the array to write the decoded data to
+     * @param outOffset the position within output at which to start
+     * @param flags     controls certain features of the decoded output.
+     *                  Pass {@code DEFAULT} to decode standard Base64.
+     *
+     * @return the number of bytes written to output
+     *
+     * @throws IllegalArgumentException if the input contains
+     * incorrect padding, or if output does not have room for the
+     * decoded data (see {@link #decodedLength(byte[], int, int, int)})
+     */
+    public static int decode(byte[] input, int offset, int len, byte[] output, int outOffset, int flags) {
+        final int room = output.length - outOffset;
+        if ((int) ((long) len * 3 / 4) > room && decodedLength(input, offset, len, flags) > room) {
+            throw new IllegalArgumentException("output too small");
+        }
+        final Decoder decoder = new Decoder(flags, output);
+        decoder.outputOffset = outOffset;
         if (!decoder.process(input, offset, len, true)) {
             throw new IllegalArgumentException("bad base-64");
         }
+        return decoder.op - outOffset;
+    }
 
-        // Maybe we got lucky and allocated exactly enough output space.
-        if (decoder.op == decoder.output.length) {
-            return decoder.output;
+    /**
+     * Decode characters from a CharSequence into a caller-supplied
+     * array without converting the whole input to bytes first.
+     *
+     * @param input     the characters to decode
+     * @param offset    the index of the first character to decode
+     * @param len       the number of characters to decode
+     * @param output    the array to write the decoded data to
+     * @param outOffset the position within output at which to start
+     * @param flags     controls certain features of the decoded output.
+     *                  Pass {@code DEFAULT} to decode standard Base64.
+     *
+     * @return the number of bytes written to output
+     *
+     * @throws IllegalArgumentException if the input contains
+     * incorrect padding, or if output does not have room for the
+     * decoded data
+     */
+    public static int decode(CharSequence input, int offset, int len, byte[] output, int outOffset, int flags) {
+        final int room = output.length - outOffset;
+        if ((int) ((long) len * 3 / 4) > room && decodedLength(input, offset, len, flags) > room) {
+            throw new IllegalArgumentException("output too small");
+        }
+        final byte[] chunk = SCRATCH_IN.get();
+        final Decoder decoder = new Decoder(flags, output);
+        decoder.outputOffset = outOffset;
+        final int end = offset + len;
+        do {
+            final int n = Math.min(end - offset, chunk.length);
+            for (int i = 0; i < n; i++) {
+                chunk[i] = asciiByte(input.charAt(offset + i));
+            }
+            offset += n;
+            if (!decoder.process(chunk, 0, n, offset == end)) {
+                throw new IllegalArgumentException("bad base-64");
+            }
+            decoder.outputOffset = decoder.op;
+        } while (offset < end);
+        return decoder.op - outOffset;
+    }
+
+    /**
+     * Decode the Base64-encoded bytes remaining in input into the
+     * space remaining in output.  Either buffer may be direct.  On
+     * return the position of input is at its limit and the position
+     * of output is just past the decoded data.
+     *
+     * @param flags  controls certain features of the decoded output.
+     *               Pass {@code DEFAULT} to decode standard Base64.
+     *
+     * @return the number of bytes written to output
+     *
+     * @throws IllegalArgumentException if the input contains
+     * incorrect padding, or if output does not have room for the
+     * decoded data
+     */
+    public static int decode(ByteBuffer input, ByteBuffer output, int flags) {
+        if (input.hasArray() && output.hasArray()) {
+            final int n = decode(input.array(), input.arrayOffset() + input.position(), input.remaining(),
+                    output.array(), output.arrayOffset() + output.position(), flags);
+            input.position(input.limit());
+            output.position(output.position() + n);
+            return n;
+        }
+        return process(new Decoder(flags, null), input, output);
+    }
+
+    /**
+     * Compute the exact number of bytes that decoding input will
+     * produce, assuming it is well-formed.
+     *
+     * @param input  the data to be decoded
+     * @param offset the position within the input array at which to start
+     * @param len    the number of bytes of input
+     * @param flags  the flags that will be passed to decode
+     */
+    public static int decodedLength(byte[] input, int offset, int len, int flags) {
+        final int[] alphabet = Decoder.alphabet(flags);
+        int data = 0;
+        for (int i = offset, end = offset + len; i < end; i++) {
+            if (alphabet[input[i] & 0xff] >= 0) {
+                data++;
+            }
+        }
+        return bytesForDataChars(data);
+    }
+
+    /**
+     * Compute the exact number of bytes that decoding input will
+     * produce, assuming it is well-formed.
+     *
+     * @param input  the characters to be decoded
+     * @param offset the index of the first character
+     * @param len    the number of characters
+     * @param flags  the flags that will be passed to decode
+     */
+    public static int decodedLength(CharSequence input, int offset, int len, int flags) {
+        final int[] alphabet = Decoder.alphabet(flags);
+        int data = 0;
+        for (int i = offset, end = offset + len; i < end; i++) {
+            if (alphabet[asciiByte(input.charAt(i)) & 0xff] >= 0) {
+                data++;
+            }
         }
+        return bytesForDataChars(data);
+    }
+
+    private static int bytesForDataChars(int data) {
+        // Every four characters make three bytes; a trailing two or
+        // three make one or two more.
+        final int tail = data % 4;
+        return data / 4 * 3 + (tail > 1 ? tail - 1 : 0);
+    }
 
-        // Need to shorten the array, so allocate a new one of the
-        // right size and copy.
-        byte[] temp = new byte[decoder.op];
-        System.arraycopy(decoder.output, 0, temp, 0, decoder.op);
-        return temp;
+    /**
+     * Map a character to the byte the decoder should see for it.
+     * Characters above ISO-8859-1 can never be in the alphabet.
+     */
+    private static byte asciiByte(char c) {
+        return c < 0x100 ? (byte) c : (byte) 0x80;
     }
 
     /* package */ static class Decoder extends Coder {
@@ -241,11 +410,15 @@ public class Base64 {
         public Decoder(int flags, byte[] output) {
             this.output = output;
 
-            alphabet = ((flags & URL_SAFE) == 0) ? DECODE : DECODE_WEBSAFE;
+            alphabet = alphabet(flags);
             state = 0;
             value = 0;
         }
 
+        static int[] alphabet(int flags) {
+            return ((flags & URL_SAFE) == 0) ? DECODE : DECODE_WEBSAFE;
+        }
+
         /**
          * @return an overestimate for the number of bytes {@code
          * len} bytes could decode to.
@@ -273,7 +446,7 @@ public class Base64 {
             // the member variable is final.)
             int state = this.state;
             int value = this.value;
-            int op = 0;
+            int op = this.outputOffset;
             final byte[] output = this.output;
             final int[] alphabet = this.alphabet;
 
@@ -509,11 +682,86 @@ public class Base64 {
     public static byte[] encode(byte[] input, int offset, int len, int flags) {
         Encoder encoder = new Encoder(flags, null);
 
+        int output_len = encodedLength(len, flags);
+
+        encoder.output = new byte[output_len];
+        encoder.process(input, offset, len, true);
+
+        assert encoder.op == output_len;
+
+        return encoder.output;
+    }
+
+    /**
+     * Base64-encode the given data into a caller-supplied array.
+     *
+     * @param input     the data to encode
+     * @param offset    the position within the input array at which to
+     *                  start
+     * @param len       the number of bytes of input to encode
+     * @param output    the array to write the encoded data to; it must
+     *                  have at least {@link #encodedLength(int, int)}
+     *                  bytes of room after outOffset
+     * @param outOffset the position within output at which to start
+     * @param flags     controls certain features of the encoded output.
+     *                  Passing {@code DEFAULT} results in output that
+     *                  adheres to RFC 2045.
+     *
+     * @return the number of bytes written to output
+     *
+     * @throws IllegalArgumentException if output is too small
+     */
+    public static int encode(byte[] input, int offset, int len, byte[] output, int outOffset, int flags) {
+        if (encodedLength(len, flags) > output.length - outOffset) {
+            throw new IllegalArgumentException("output too small");
+        }
+        Encoder encoder = new Encoder(flags, output);
+        encoder.outputOffset = outOffset;
+        encoder.process(input, offset, len, true);
+        return encoder.op - outOffset;
+    }
+
+    /**
+     * Base64-encode the bytes remaining in input into the space
+     * remaining in output.  Either buffer may be direct.  On return
+     * the position of input is at its limit and the position of
+     * output is just past the encoded data.
+     *
+     * @param flags  controls certain features of the encoded output.
+     *               Passing {@code DEFAULT} results in output that
+     *               adheres to RFC 2045.
+     *
+     * @return the number of bytes written to output
+     *
+     * @throws IllegalArgumentException if output is too small
+     */
+    public static int encode(ByteBuffer input, ByteBuffer output, int flags) {
+        if (encodedLength(input.remaining(), flags) > output.remaining()) {
+            throw new IllegalArgumentException("output too small");
+        }
+        if (input.hasArray() && output.hasArray()) {
+            final int n = encode(input.array(), input.arrayOffset() + input.position(), input.remaining(),
+                    output.array(), output.arrayOffset() + output.position(), flags);
+            input.position(input.limit());
+            output.position(output.position() + n);
+            return n;
+        }
+        return process(new Encoder(flags, null), input, output);
+    }
+
+    /**
+     * Compute the exact number of bytes that encoding len bytes will
+     * produce.
+     *
+     * @param len    the number of bytes to encode
+     * @param flags  the flags that will be passed to encode
+     */
+    public static int encodedLength(int len, int flags) {
         // Compute the exact length of the array we will produce.
         int output_len = len / 3 * 4;
 
         // Account for the tail of the data and the padding bytes, if any.
-        if (encoder.do_padding) {
+        if ((flags & NO_PADDING) == 0) {
             if (len % 3 > 0) {
                 output_len += 4;
             }
@@ -526,17 +774,60 @@ public class Base64 {
         }
 
         // Account for the newlines, if any.
-        if (encoder.do_newline && len > 0) {
+        if ((flags & NO_WRAP) == 0 && len > 0) {
             output_len += (((len-1) / (3 * Encoder.LINE_GROUPS)) + 1) *
-                (encoder.do_cr ? 2 : 1);
+                ((flags & CRLF) != 0 ? 2 : 1);
         }
+        return output_len;
+    }
 
-        encoder.output = new byte[output_len];
-        encoder.process(input, offset, len, true);
+    //  --------------------------------------------------------
+    //  ByteBuffer support
+    //  --------------------------------------------------------
 
-        assert encoder.op == output_len;
+    private static final int SCRATCH_SIZE = 3 * 1024;
 
-        return encoder.output;
+    /**
+     * Per-thread staging arrays for buffers without an accessible
+     * array, so that direct buffers do not cost an allocation per
+     * call.
+     */
+    private static final ThreadLocal<byte[]> SCRATCH_IN = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[SCRATCH_SIZE];
+        }
+    };
+
+    private static final ThreadLocal<byte[]> SCRATCH_OUT = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[SCRATCH_SIZE * 8/5 + 10];
+        }
+    };
+
+    /**
+     * Run coder over input in scratch-sized chunks, copying the
+     * results to output.  The caller has checked that output is big
+     * enough, or output's put() will throw.
+     */
+    private static int process(Coder coder, ByteBuffer input, ByteBuffer output) {
+        final byte[] in = SCRATCH_IN.get();
+        coder.output = SCRATCH_OUT.get();
+        int total = 0;
+        do {
+            final int n = Math.min(input.remaining(), in.length);
+            input.get(in, 0, n);
+            if (!coder.process(in, 0, n, !input.hasRemaining())) {
+                throw new IllegalArgumentException("bad base-64");
+            }
+            if (coder.op > output.remaining()) {
+                throw new IllegalArgumentException("output too small");
+            }
+            output.put(coder.output, 0, coder.op);
+            total += coder.op;
+        } while (input.hasRemaining());
+        return total;
     }
 
     /* package */ static class Encoder extends Coder {
@@ -604,7 +895,7 @@ public class Base64 {
             // Using local variables makes the encoder about 9% faster.
             final byte[] alphabet = this.alphabet;
             final byte[] output = this.output;
-            int op = 0;
+            int op = this.outputOffset;
             int count = this.count;
 
             int p = offset;
@@ -711,7 +1002,9 @@ public class Base64 {
                         if (do_cr) output[op++] = '\r';
                         output[op++] = '\n';
                     }
-                } else if (do_newline && op > 0 && count != LINE_GROUPS) {
+                } else if (do_newline && count != LINE_GROUPS) {
+                    // count only moves once a tuple has been written, possibly
+                    // by an earlier call when used from a stream.
                     if (do_cr) output[op++] = '\r';
                     output[op++] = '\n';
                 }
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2012 Tatsuo Nagamatsu <nagamatu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.nagamatu.radiko.installer;
+
+/**
+ * Reusable I/O buffers in power-of-two sizes from {@link #MIN_SIZE} to
+ * {@link #MAX_SIZE}.
+ *
+ * <p>Only a bounded number of bytes is kept per size; anything beyond is
+ * left to the garbage collector.  After {@link #trim()}, e.g. on a low
+ * memory warning, the pool drops everything it holds and hands out small
+ * buffers only for a while.
+ */
+final class BufferPool {
+    public static final int MIN_SIZE = 4 * 1024;
+    public static final int MAX_SIZE = 256 * 1024;
+
+    /** Bytes kept per size class. */
+    private static final int BYTES_PER_CLASS = 512 * 1024;
+    /** Largest buffer while memory is short. */
+    private static final int LOW_MEMORY_MAX_SIZE = 16 * 1024;
+    private static final long LOW_MEMORY_HOLD_MILLIS = 60 * 1000;
+
+    private static final int MIN_SHIFT = 12;
+    private static final int CLASSES = 18 - MIN_SHIFT + 1;
+
+    private static BufferPool sDefault;
+
+    private final byte[][][] mFree = new byte[CLASSES][][];
+    private final int[] mCount = new int[CLASSES];
+    private final int mMaxSize;
+    private long mLowMemoryUntil;
+
+    BufferPool() {
+        // A single buffer should never be a noticeable part of the heap,
+        // which is 16 MB on the smallest devices.
+        mMaxSize = Math.max(MIN_SIZE, Math.min(MAX_SIZE,
+                Integer.highestOneBit((int)Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 128))));
+        for (int i = 0; i < CLASSES; i++) {
+            mFree[i] = new byte[Math.max(2, BYTES_PER_CLASS >> (i + MIN_SHIFT))][];
+        }
+    }
+
+    /** @return the pool shared by the whole process. */
+    public static synchronized BufferPool getDefault() {
+        if (sDefault == null) {
+            sDefault = new BufferPool();
+        }
+        return sDefault;
+    }
+
+    /**
+     * @return a buffer of at least {@code size} bytes, rounded up to a
+     *         power of two but no larger than {@link #getMaxSize()}.  Its
+     *         contents are undefined.
+     */
+    public byte[] acquire(int size) {
+        final int cls = sizeClass(Math.min(size, getMaxSize()));
+        synchronized (this) {
+            if (mCount[cls] > 0) {
+                final byte[] buf = mFree[cls][--mCount[cls]];
+                mFree[cls][mCount[cls]] = null;
+                return buf;
+            }
+        }
+        return new byte[MIN_SIZE << cls];
+    }
+
+    /** Give {@code buf} back; it must not be used afterwards. */
+    public void release(byte[] buf) {
+        if (buf == null || Integer.bitCount(buf.length) != 1 || buf.length < MIN_SIZE
+                || buf.length > getMaxSize()) {
+            return;
+        }
+        final int cls = sizeClass(buf.length);
+        synchronized (this) {
+            if (mCount[cls] < mFree[cls].length) {
+                mFree[cls][mCount[cls]++] = buf;
+            }
+        }
+    }
+
+    /** @return the largest buffer {@link #acquire} hands out at the moment. */
+    public synchronized int getMaxSize() {
+        if (mLowMemoryUntil != 0) {
+            if (System.currentTimeMillis() < mLowMemoryUntil) {
+                return LOW_MEMORY_MAX_SIZE;
+            }
+            mLowMemoryUntil = 0;
+        }
+        return mMaxSize;
+    }
+
+    /** Drop every pooled buffer and stick to small ones for a while. */
+    public synchronized void trim() {
+        for (int i = 0; i < CLASSES; i++) {
+            for (int j = 0; j < mCount[i]; j++) {
+                mFree[i][j] = null;
+            }
+            mCount[i] = 0;
+        }
+        mLowMemoryUntil = System.currentTimeMillis() + LOW_MEMORY_HOLD_MILLIS;
+    }
+
+    private static int sizeClass(int size) {
+        if (size <= MIN_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+}
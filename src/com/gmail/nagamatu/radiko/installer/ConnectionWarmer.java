@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2012 Tatsuo Nagamatsu <nagamatu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.nagamatu.radiko.installer;
+
+import org.apache.http.HttpHost;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.AbstractHttpClient;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+
+import java.net.URI;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens connections ahead of the requests which will need them.
+ *
+ * <p>A warmed connection is resolved, connected and, for https, through
+ * its TLS handshake, and is then released into the client's own pool
+ * under the same route a request for the URL would use, so the request
+ * simply finds it there.  Warming is best effort: failures are ignored and
+ * the request will connect on its own.
+ */
+class ConnectionWarmer {
+    /** How long a warmed connection stays in the pool unused. */
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    /** Longest wait for a free pool slot before giving up on warming. */
+    private static final long POOL_TIMEOUT_SECONDS = 5;
+
+    private final HttpClient mClient;
+    private final ExecutorService mExecutor;
+
+    public ConnectionWarmer(HttpClient client) {
+        mClient = client;
+        mExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, "ConnectionWarmer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Start opening {@code count} connections to the host of {@code url}
+     * in the background.
+     */
+    public void warm(final String url, int count) {
+        // Every connection is held until all have been taken from the pool;
+        // released early, one would just be handed to the next task again.
+        final CountDownLatch acquired = new CountDownLatch(count);
+        for (int i = 0; i < count; i++) {
+            mExecutor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        open(url, acquired);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+        }
+    }
+
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    private void open(String url, CountDownLatch acquired) throws Exception {
+        final URI uri = new URI(url);
+        // Build the target exactly as the client does, so the route, and
+        // with it the pool entry, is the same one the request will ask for.
+        final HttpHost target = new HttpHost(uri.getHost(), uri.getPort(), uri.getScheme());
+        final HttpContext context = new BasicHttpContext();
+        final HttpRoute route;
+        if (mClient instanceof AbstractHttpClient) {
+            route = ((AbstractHttpClient)mClient).getRoutePlanner().determineRoute(target, new HttpGet(uri), context);
+        } else {
+            route = new HttpRoute(target, null, "https".equalsIgnoreCase(target.getSchemeName()));
+        }
+
+        final ClientConnectionManager ccm = mClient.getConnectionManager();
+        final ManagedClientConnection conn;
+        try {
+            conn = ccm.requestConnection(route, null).getConnection(POOL_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } finally {
+            acquired.countDown();
+        }
+        try {
+            if (!conn.isOpen()) {
+                conn.open(route, context, mClient.getParams());
+                if (route.isSecure()) {
+                    // Make sure the handshake has happened, not just the connect.
+                    conn.getSSLSession();
+                }
+            }
+            conn.markReusable();
+            acquired.await(POOL_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } finally {
+            ccm.releaseConnection(conn, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+}
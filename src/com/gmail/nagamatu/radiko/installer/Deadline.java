@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2012 Tatsuo Nagamatsu <nagamatu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.nagamatu.radiko.installer;
+
+import org.apache.http.conn.ConnectTimeoutException;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The running time limit of one phase of an install, and the handle by
+ * which it is cancelled.
+ *
+ * <p>Everything the phase has in flight (requests, a segmented download)
+ * is registered with {@link #onAbort}; when the total time is up or
+ * {@link #cancel()} is called from another thread, all of it is aborted
+ * at once, which also gives the connections back to the pool.  The
+ * failure that results is turned into the matching
+ * {@link InstallerEngine.DeadlineException} or
+ * {@link InstallerEngine.CancelledException} by {@link #translate}.
+ */
+final class Deadline {
+    private static final int RUNNING = 0;
+    private static final int EXPIRED = 1;
+    private static final int CANCELLED = 2;
+    private static final int CLOSED = 3;
+
+    private static ScheduledThreadPoolExecutor sTimer;
+
+    private final String mPhase;
+    private final long mTotalMillis;
+    private final List<Runnable> mAbortActions = new ArrayList<Runnable>();
+    private final long mExpiresAt;
+    private ScheduledFuture<?> mExpiry;
+    private int mState = RUNNING;
+
+    /**
+     * @param totalMillis how long the phase may take, or 0 for no limit
+     */
+    public Deadline(String phase, long totalMillis) {
+        mPhase = phase;
+        mTotalMillis = totalMillis;
+        mExpiresAt = totalMillis > 0 ? System.currentTimeMillis() + totalMillis : Long.MAX_VALUE;
+        if (totalMillis > 0) {
+            mExpiry = getTimer().schedule(new Runnable() {
+                public void run() {
+                    abort(EXPIRED);
+                }
+            }, totalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static synchronized ScheduledThreadPoolExecutor getTimer() {
+        if (sTimer == null) {
+            sTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "Deadline");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sTimer;
+    }
+
+    public String getPhase() {
+        return mPhase;
+    }
+
+    /** Run {@code action} when the phase is aborted; at once if it already was. */
+    public void onAbort(Runnable action) {
+        synchronized (this) {
+            if (mState == RUNNING) {
+                mAbortActions.add(action);
+                return;
+            } else if (mState == CLOSED) {
+                return;
+            }
+        }
+        action.run();
+    }
+
+    /** Forget {@code action}, e.g. once what it would abort is over. */
+    public synchronized void removeAbortAction(Runnable action) {
+        mAbortActions.remove(action);
+    }
+
+    /** Abort {@code request} with the phase. */
+    public void watch(final HttpRequest request) {
+        onAbort(new Runnable() {
+            public void run() {
+                request.abort();
+            }
+        });
+    }
+
+    /** Abort the phase from any thread. */
+    public void cancel() {
+        abort(CANCELLED);
+    }
+
+    /** @return the time left, or Long.MAX_VALUE if the phase has no limit. */
+    public long getRemainingMillis() {
+        return mExpiresAt == Long.MAX_VALUE ? Long.MAX_VALUE : mExpiresAt - System.currentTimeMillis();
+    }
+
+    /**
+     * Wait {@code millis}, e.g. before a retry, unless the phase is aborted
+     * first.
+     *
+     * @throws IOException if the phase has expired or been cancelled.
+     */
+    public void sleep(long millis) throws IOException {
+        final long end = System.currentTimeMillis() + millis;
+        synchronized (this) {
+            long left;
+            while (mState == RUNNING && (left = end - System.currentTimeMillis()) > 0) {
+                try {
+                    wait(left);
+                } catch (InterruptedException e) {
+                    throw new InstallerEngine.CancelledException(mPhase);
+                }
+            }
+        }
+        check();
+    }
+
+    /** @throws IOException if the phase has expired or been cancelled. */
+    public void check() throws IOException {
+        final IOException e = failure();
+        if (e != null) {
+            throw e;
+        }
+    }
+
+    /** The phase is over; stop the clock and forget what was registered. */
+    public void close() {
+        final ScheduledFuture<?> expiry;
+        synchronized (this) {
+            if (mState == RUNNING) {
+                mState = CLOSED;
+            }
+            mAbortActions.clear();
+            expiry = mExpiry;
+            mExpiry = null;
+        }
+        if (expiry != null && expiry.cancel(false)) {
+            // Pre-Java 7 executors keep cancelled tasks queued until due.
+            getTimer().purge();
+        }
+    }
+
+    /**
+     * @return what {@code e}, a failure of this phase, really means: a
+     *         cancellation, a missed deadline, or {@code e} itself.
+     */
+    public IOException translate(IOException e) {
+        if (e instanceof InstallerEngine.DeadlineException || e instanceof InstallerEngine.CancelledException) {
+            return e;
+        }
+        IOException result = failure();
+        if (result == null) {
+            if (e instanceof ConnectTimeoutException
+                    || (e instanceof SocketTimeoutException && String.valueOf(e.getMessage()).contains("connect"))) {
+                result = new InstallerEngine.DeadlineException(mPhase, InstallerEngine.DeadlineException.CONNECT,
+                        e.getMessage());
+            } else if (e instanceof SocketTimeoutException) {
+                result = new InstallerEngine.DeadlineException(mPhase, InstallerEngine.DeadlineException.READ,
+                        e.getMessage());
+            } else {
+                return e;
+            }
+        }
+        result.initCause(e);
+        return result;
+    }
+
+    private synchronized IOException failure() {
+        if (mState == CANCELLED) {
+            return new InstallerEngine.CancelledException(mPhase);
+        } else if (mState == EXPIRED) {
+            return new InstallerEngine.DeadlineException(mPhase, InstallerEngine.DeadlineException.TOTAL,
+                    "no result after " + mTotalMillis + " ms");
+        }
+        return null;
+    }
+
+    private void abort(int state) {
+        final Runnable[] actions;
+        synchronized (this) {
+            if (mState != RUNNING) {
+                return;
+            }
+            mState = state;
+            actions = mAbortActions.toArray(new Runnable[mAbortActions.size()]);
+            mAbortActions.clear();
+            notifyAll();
+        }
+        for (Runnable action : actions) {
+            action.run();
+        }
+    }
+}
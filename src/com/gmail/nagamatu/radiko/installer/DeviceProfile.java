@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2012 Tatsuo Nagamatsu <nagamatu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.nagamatu.radiko.installer;
+
+/**
+ * The RequestContext fields which describe the device and its carrier.
+ * They never change for a given device, so requests for one profile share
+ * a precompiled template (see {@link MarketRequest#forProfile}).
+ */
+final class DeviceProfile {
+    /** Market client version reported by the original installer. */
+    public static final int DEFAULT_SDK_VERSION = 2009011;
+
+    final String deviceId;
+    final int sdkVersion;
+    final String deviceAndSdkVersion;
+    final String userLanguage;
+    final String userCountry;
+    final String operatorAlpha;
+    final String simOperatorAlpha;
+    final String operatorNumeric;
+    final String simOperatorNumeric;
+
+    public DeviceProfile(String deviceId, int sdkVersion, String deviceAndSdkVersion,
+            String userLanguage, String userCountry, String operatorAlpha, String simOperatorAlpha,
+            String operatorNumeric, String simOperatorNumeric) {
+        this.deviceId = deviceId;
+        this.sdkVersion = sdkVersion;
+        this.deviceAndSdkVersion = deviceAndSdkVersion;
+        this.userLanguage = userLanguage;
+        this.userCountry = userCountry;
+        this.operatorAlpha = operatorAlpha;
+        this.simOperatorAlpha = simOperatorAlpha;
+        this.operatorNumeric = operatorNumeric;
+        this.simOperatorNumeric = simOperatorNumeric;
+    }
+
+    /**
+     * The profile the installer has always presented: a Nexus One on
+     * NTT docomo, which the Market serves the Japan-only package to.
+     */
+    public static DeviceProfile forDevice(String deviceId) {
+        return new DeviceProfile(deviceId, DEFAULT_SDK_VERSION, "passion:9", "en", "us",
+                "DoCoMo", "DoCoMo", "44010", "44010");
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof DeviceProfile)) {
+            return false;
+        }
+        final DeviceProfile p = (DeviceProfile)o;
+        return sdkVersion == p.sdkVersion
+                && eq(deviceId, p.deviceId)
+                && eq(deviceAndSdkVersion, p.deviceAndSdkVersion)
+                && eq(userLanguage, p.userLanguage)
+                && eq(userCountry, p.userCountry)
+                && eq(operatorAlpha, p.operatorAlpha)
+                && eq(simOperatorAlpha, p.simOperatorAlpha)
+                && eq(operatorNumeric, p.operatorNumeric)
+                && eq(simOperatorNumeric, p.simOperatorNumeric);
+    }
+
+    @Override
+    public int hashCode() {
+        int h = sdkVersion;
+        h = 31 * h + hash(deviceId);
+        h = 31 * h + hash(deviceAndSdkVersion);
+        h = 31 * h + hash(userLanguage);
+        h = 31 * h + hash(userCountry);
+        h = 31 * h + hash(operatorAlpha);
+        h = 31 * h + hash(simOperatorAlpha);
+        h = 31 * h + hash(operatorNumeric);
+        h = 31 * h + hash(simOperatorNumeric);
+        return h;
+    }
+
+    private static boolean eq(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static int hash(String s) {
+        return s == null ? 0 : s.hashCode();
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2012 Tatsuo Nagamatsu <nagamatu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gmail.nagamatu.radiko.installer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Small on-disk record describing a partially downloaded file.
+ *
+ * <p>The journal only ever records bytes which have already been synced to
+ * the ".part" file, and it is replaced atomically (write to a temporary file,
+ * sync, rename), so after a crash it never claims more data than the part
+ * file actually holds.
+ */
+class DownloadJournal {
+    private static final String KEY_URL = "url";
+    private static final String KEY_MARKETDA = "marketDa";
+    private static final String KEY_ETAG = "etag";
+    private static final String KEY_LAST_MODIFIED = "lastModified";
+    private static final String KEY_LENGTH = "length";
+    private static final String KEY_COMMITTED = "committed";
+
+    private final File mFile;
+
+    private String mUrl;
+    private String mMarketDa;
+    private String mETag;
+    private String mLastModified;
+    private long mLength = -1;
+    private long mCommitted;
+
+    private DownloadJournal(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Load the journal stored in {@code file}.  A missing or unreadable
+     * journal results in an empty one, which simply means "start from zero".
+     */
+    public static DownloadJournal open(File file) {
+        final DownloadJournal journal = new DownloadJournal(file);
+        if (!file.exists()) {
+            return journal;
+        }
+        final Properties props = new Properties();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            props.load(in);
+            journal.mUrl = props.getProperty(KEY_URL);
+            journal.mMarketDa = props.getProperty(KEY_MARKETDA);
+            journal.mETag = props.getProperty(KEY_ETAG);
+            journal.mLastModified = props.getProperty(KEY_LAST_MODIFIED);
+            journal.mLength = Long.parseLong(props.getProperty(KEY_LENGTH, "-1"));
+            journal.mCommitted = Long.parseLong(props.getProperty(KEY_COMMITTED, "0"));
+        } catch (Exception e) {
+            e.printStackTrace();
+            journal.reset();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return journal;
+    }
+
+    /**
+     * @return true if the bytes recorded in this journal can be continued
+     *         for {@code url}.  Download URLs are signed per request, so a
+     *         different URL is only acceptable when a validator is available
+     *         to send as If-Range.
+     */
+    public boolean canResume(String url) {
+        if (mCommitted <= 0) {
+            return false;
+        }
+        return getValidator() != null || url.equals(mUrl);
+    }
+
+    /**
+     * @return the value to send as If-Range, preferring the strong ETag over
+     *         Last-Modified, or null if the server gave neither.
+     */
+    public String getValidator() {
+        if (mETag != null && !mETag.startsWith("W/")) {
+            return mETag;
+        }
+        return mLastModified;
+    }
+
+    public void reset() {
+        mUrl = null;
+        mMarketDa = null;
+        mETag = null;
+        mLastModified = null;
+        mLength = -1;
+        mCommitted = 0;
+    }
+
+    public void setSource(String url, String marketDa) {
+        mUrl = url;
+        mMarketDa = marketDa;
+    }
+
+    public void setValidators(String etag, String lastModified) {
+        mETag = etag;
+        mLastModified = lastModified;
+    }
+
+    public String getETag() {
+        return mETag;
+    }
+
+    public String getLastModified() {
+        return mLastModified;
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    public String getMarketDa() {
+        return mMarketDa;
+    }
+
+    public long getLength() {
+        return mLength;
+    }
+
+    public void setLength(long length) {
+        mLength = length;
+    }
+
+    public long getCommitted() {
+        return mCommitted;
+    }
+
+    /**
+     * Record that the first {@code committed} bytes of the part file are on
+     * stable storage and write the journal out.  The caller must have synced
+     * the part file before calling this.
+     */
+    public void commit(long committed) throws IOException {
+        mCommitted = committed;
+        final Properties props = new Properties();
+        put(props, KEY_URL, mUrl);
+        put(props, KEY_MARKETDA, mMarketDa);
+        put(props, KEY_ETAG, mETag);
+        put(props, KEY_LAST_MODIFIED, mLastModified);
+        props.setProperty(KEY_LENGTH, String.valueOf(mLength));
+        props.setProperty(KEY_COMMITTED, String.valueOf(mCommitted));
+
+        final File tmp = new File(mFile.getPath() + ".tmp");
+        final FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            props.store(out, null);
+            out.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(mFile)) {
+            throw new IOException("Cannot update " + mFile);
+        }
+    }
+
+    public void delete() {
+        reset();
+        mFile.delete();
+    }
+
+    private static void put(Properties props, String key, String value) {
+        if (value != null) {
+            props.setProperty(key, value);
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2012 Tatsuo Nagamatsu <nagamatu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gmail.nagamatu.radiko.installer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Decides which downloads may use the network, and in what order.
+ *
+ * <p>A download takes a {@link Ticket} before its first request and gives
+ * it back when done.  At most {@code maxTotal} tickets are out at once,
+ * and at most {@code maxPerHost} for any one host.  Waiting downloads are
+ * served by priority, then smallest known size first, so that short
+ * downloads are not stuck behind long ones and the average time to
+ * completion drops; unknown sizes go last, and ties in order of arrival.
+ * A returned ticket goes to the next waiter at once.
+ *
+ * <p>One scheduler may be shared by several {@link InstallerEngine}s, to
+ * keep their sum within what the transport and the link can take.
+ */
+final class DownloadScheduler {
+    /** Something the user is waiting for. */
+    public static final int PRIORITY_FOREGROUND = 10;
+    public static final int PRIORITY_DEFAULT = 0;
+
+    private final int mMaxTotal;
+    private final int mMaxPerHost;
+    /** Kept sorted, first served first. */
+    private final List<Waiter> mWaiting = new ArrayList<Waiter>();
+    private final Map<String, Integer> mRunningPerHost = new HashMap<String, Integer>();
+    private int mRunning;
+    private long mSequence;
+
+    /** The right to have one connection open. */
+    public final class Ticket {
+        private final String mHost;
+        private boolean mReleased;
+
+        private Ticket(String host) {
+            mHost = host;
+        }
+
+        /** Give the connection slot back; may be called more than once. */
+        public void release() {
+            synchronized (DownloadScheduler.this) {
+                if (mReleased) {
+                    return;
+                }
+                mReleased = true;
+                mRunning--;
+                final int running = mRunningPerHost.get(mHost) - 1;
+                if (running == 0) {
+                    mRunningPerHost.remove(mHost);
+                } else {
+                    mRunningPerHost.put(mHost, running);
+                }
+                dispatch();
+            }
+        }
+    }
+
+    private static final class Waiter implements Comparable<Waiter> {
+        final String host;
+        final int priority;
+        final long size;
+        final long sequence;
+        Ticket ticket;
+
+        Waiter(String host, int priority, long size, long sequence) {
+            this.host = host;
+            this.priority = priority;
+            this.size = size;
+            this.sequence = sequence;
+        }
+
+        public int compareTo(Waiter other) {
+            if (priority != other.priority) {
+                return priority > other.priority ? -1 : 1;
+            }
+            if (size != other.size) {
+                return size < other.size ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    public DownloadScheduler(int maxTotal, int maxPerHost) {
+        mMaxTotal = Math.max(1, maxTotal);
+        mMaxPerHost = Math.max(1, maxPerHost);
+    }
+
+    public int getMaxTotal() {
+        return mMaxTotal;
+    }
+
+    public int getMaxPerHost() {
+        return mMaxPerHost;
+    }
+
+    /**
+     * Wait for a slot to download {@code url}.
+     *
+     * @param size the number of bytes expected, or -1 if not known
+     * @param deadline aborts the wait when the phase expires or is
+     *        cancelled; may be null
+     * @throws IOException if the deadline fired, or the thread was
+     *         interrupted, before a slot came free.
+     */
+    public Ticket acquire(String url, int priority, long size, Deadline deadline) throws IOException {
+        final Waiter waiter;
+        synchronized (this) {
+            waiter = new Waiter(hostOf(url), priority, size < 0 ? Long.MAX_VALUE : size, mSequence++);
+            int i = mWaiting.size();
+            while (i > 0 && mWaiting.get(i - 1).compareTo(waiter) > 0) {
+                i--;
+            }
+            mWaiting.add(i, waiter);
+            dispatch();
+            if (waiter.ticket != null) {
+                return waiter.ticket;
+            }
+        }
+        final Runnable wakeUp = new Runnable() {
+            public void run() {
+                synchronized (DownloadScheduler.this) {
+                    DownloadScheduler.this.notifyAll();
+                }
+            }
+        };
+        if (deadline != null) {
+            deadline.onAbort(wakeUp);
+        }
+        try {
+            synchronized (this) {
+                try {
+                    while (waiter.ticket == null) {
+                        if (deadline != null) {
+                            deadline.check();
+                        }
+                        wait();
+                    }
+                    return waiter.ticket;
+                } catch (InterruptedException e) {
+                    if (waiter.ticket != null) {
+                        // Granted as the interrupt came in: keep the slot
+                        // and leave the interrupt to the caller.
+                        Thread.currentThread().interrupt();
+                        return waiter.ticket;
+                    }
+                    throw new InterruptedIOException("Interrupted waiting for a download slot");
+                } finally {
+                    if (waiter.ticket == null) {
+                        mWaiting.remove(waiter);
+                    }
+                }
+            }
+        } finally {
+            if (deadline != null) {
+                deadline.removeAbortAction(wakeUp);
+            }
+        }
+    }
+
+    /**
+     * Take a slot for {@code url} only if one is free and nobody is
+     * waiting, e.g. for an extra segment of a download already running.
+     *
+     * @return the ticket, or null.
+     */
+    public synchronized Ticket tryAcquire(String url) throws IOException {
+        final String host = hostOf(url);
+        if (!mWaiting.isEmpty() || mRunning >= mMaxTotal || getRunning(host) >= mMaxPerHost) {
+            return null;
+        }
+        return grant(host);
+    }
+
+    /** Hand free slots to waiters, best first, skipping those whose host is full. */
+    private void dispatch() {
+        boolean granted = false;
+        for (int i = 0; i < mWaiting.size() && mRunning < mMaxTotal; ) {
+            final Waiter waiter = mWaiting.get(i);
+            if (getRunning(waiter.host) < mMaxPerHost) {
+                mWaiting.remove(i);
+                waiter.ticket = grant(waiter.host);
+                granted = true;
+            } else {
+                i++;
+            }
+        }
+        if (granted) {
+            notifyAll();
+        }
+    }
+
+    private Ticket grant(String host) {
+        mRunning++;
+        mRunningPerHost.put(host, getRunning(host) + 1);
+        return new Ticket(host);
+    }
+
+    private int getRunning(String host) {
+        final Integer running = mRunningPerHost.get(host);
+        return running == null ? 0 : running;
+    }
+
+    private static String hostOf(String url) throws IOException {
+        final URL u = new URL(url);
+        return u.getHost().toLowerCase(Locale.US) + ":" + (u.getPort() < 0 ? u.getDefaultPort() : u.getPort());
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2012 Tatsuo Nagamatsu <nagamatu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gmail.nagamatu.radiko.installer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes a download to disk through a {@link FileChannel}.
+ *
+ * <p>Sequential writes are gathered in one large buffer so that slow
+ * storage sees a few big writes instead of thousands of small ones, and
+ * the file is sized up front so it is not extended piecemeal.  Positional
+ * writes ({@link #write(ByteBuffer, long)}) bypass the buffer and may be
+ * issued from several threads at once.
+ */
+class DownloadSink {
+    /** Never fsync; data survives process death but not power loss. */
+    public static final int SYNC_NONE = 0;
+
+    /** fsync once when the sink is closed. */
+    public static final int SYNC_AT_END = 1;
+
+    /** fsync every {@code syncInterval} bytes and when closed. */
+    public static final int SYNC_EVERY = 2;
+
+    public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+    private final File mFile;
+    private final RandomAccessFile mRaf;
+    private final FileChannel mChannel;
+    private final ByteBuffer mBuffer;
+    private final long mFreeSpace;
+    private final int mSyncPolicy;
+    private final long mSyncInterval;
+
+    /** File offset at which the buffered bytes will be written. */
+    private long mPosition;
+    private long mUnsynced;
+    private long mDurable;
+
+    /**
+     * @param file       the file to write, created if needed
+     * @param position   the offset of the first sequential write
+     * @param freeSpace  bytes available on the file's volume
+     * @param syncPolicy one of {@link #SYNC_NONE}, {@link #SYNC_AT_END}
+     *                   or {@link #SYNC_EVERY}
+     * @param syncInterval bytes between syncs for {@link #SYNC_EVERY}
+     * @param bufferSize size of the write buffer
+     * @param direct     whether to allocate the write buffer outside the
+     *                   Java heap
+     */
+    public DownloadSink(File file, long position, long freeSpace, int syncPolicy, long syncInterval,
+            int bufferSize, boolean direct) throws IOException {
+        mFile = file;
+        mRaf = new RandomAccessFile(file, "rw");
+        mChannel = mRaf.getChannel();
+        mBuffer = direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+        mFreeSpace = freeSpace;
+        mSyncPolicy = syncPolicy;
+        mSyncInterval = syncInterval;
+        mPosition = position;
+        mDurable = position;
+    }
+
+    /**
+     * Size the file to exactly {@code length} bytes.
+     *
+     * @throws IOException if the volume does not have room for it.
+     */
+    public void preallocate(long length) throws IOException {
+        final long current = mRaf.length();
+        if (length - current > mFreeSpace) {
+            throw new IOException("Not enough space for " + mFile.getName() + ": need "
+                    + (length - current) + " bytes, " + mFreeSpace + " available");
+        }
+        if (length != current) {
+            mRaf.setLength(length);
+        }
+    }
+
+    public void write(byte[] buf, int off, int len) throws IOException {
+        while (len > 0) {
+            final int n = Math.min(len, mBuffer.remaining());
+            mBuffer.put(buf, off, n);
+            off += n;
+            len -= n;
+            if (!mBuffer.hasRemaining()) {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Write {@code src} at {@code position} without going through the
+     * sequential buffer.  Safe to call concurrently for disjoint ranges.
+     */
+    public void write(ByteBuffer src, long position) throws IOException {
+        while (src.hasRemaining()) {
+            position += mChannel.write(src, position);
+        }
+    }
+
+    /** Hand all buffered bytes to the file system. */
+    public void flush() throws IOException {
+        drain();
+        if (mSyncPolicy == SYNC_NONE) {
+            mDurable = mPosition;
+        } else if (mSyncPolicy == SYNC_EVERY && mUnsynced >= mSyncInterval) {
+            sync();
+        }
+    }
+
+    /** Flush and fsync regardless of the policy. */
+    public void sync() throws IOException {
+        drain();
+        mChannel.force(false);
+        mUnsynced = 0;
+        mDurable = mPosition;
+    }
+
+    private void drain() throws IOException {
+        mBuffer.flip();
+        final int n = mBuffer.remaining();
+        write(mBuffer, mPosition);
+        mBuffer.clear();
+        mPosition += n;
+        mUnsynced += n;
+    }
+
+    /** @return the offset just past the last sequentially written byte. */
+    public long getPosition() {
+        return mPosition + mBuffer.position();
+    }
+
+    /**
+     * @return the offset up to which sequential writes are as durable as
+     *         the sync policy makes them.
+     */
+    public long getDurableLength() {
+        return mDurable;
+    }
+
+    /** Flush, sync unless the policy is {@link #SYNC_NONE}, and close. */
+    public void close() throws IOException {
+        try {
+            if (mSyncPolicy == SYNC_NONE) {
+                flush();
+            } else {
+                sync();
+            }
+        } finally {
+            mRaf.close();
+        }
+    }
+}
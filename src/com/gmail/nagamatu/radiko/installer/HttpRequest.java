@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2012 Tatsuo Nagamatsu <nagamatu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.nagamatu.radiko.installer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A request for an {@link HttpTransport}, and the handle to abort it.
+ */
+final class HttpRequest {
+    public static final String GET = "GET";
+    public static final String POST = "POST";
+
+    private static final String CONTENT_TYPE_FORM = "application/x-www-form-urlencoded";
+
+    private final String mMethod;
+    private final String mUrl;
+    private final List<String> mHeaders = new ArrayList<String>();
+    private byte[] mBody;
+    private String mContentType;
+    private final RequestTiming mTiming = new RequestTiming();
+    private int mConnectTimeout;
+    private int mReadTimeout;
+
+    private boolean mAborted;
+    private Runnable mAbortAction;
+
+    private HttpRequest(String method, String url) {
+        mMethod = method;
+        mUrl = url;
+    }
+
+    public static HttpRequest get(String url) {
+        return new HttpRequest(GET, url);
+    }
+
+    /**
+     * @param form alternating names and values, sent UTF-8 and
+     *        URL-encoded
+     */
+    public static HttpRequest postForm(String url, String... form) throws UnsupportedEncodingException {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i + 1 < form.length; i += 2) {
+            if (i > 0) {
+                sb.append('&');
+            }
+            sb.append(URLEncoder.encode(form[i], "UTF-8"));
+            sb.append('=');
+            sb.append(URLEncoder.encode(form[i + 1], "UTF-8"));
+        }
+        final HttpRequest request = new HttpRequest(POST, url);
+        request.mBody = sb.toString().getBytes("UTF-8");
+        request.mContentType = CONTENT_TYPE_FORM;
+        return request;
+    }
+
+    public HttpRequest addHeader(String name, String value) {
+        mHeaders.add(name);
+        mHeaders.add(value);
+        return this;
+    }
+
+    public String getMethod() {
+        return mMethod;
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    public int getHeaderCount() {
+        return mHeaders.size() / 2;
+    }
+
+    public String getHeaderName(int i) {
+        return mHeaders.get(2 * i);
+    }
+
+    public String getHeaderValue(int i) {
+        return mHeaders.get(2 * i + 1);
+    }
+
+    /** @return the request body, or null for none. */
+    public byte[] getBody() {
+        return mBody;
+    }
+
+    public String getContentType() {
+        return mContentType;
+    }
+
+    /**
+     * Override the transport's timeouts for this request; 0 keeps the
+     * transport's own.
+     */
+    public HttpRequest setTimeouts(int connectMillis, int readMillis) {
+        mConnectTimeout = connectMillis;
+        mReadTimeout = readMillis;
+        return this;
+    }
+
+    public int getConnectTimeout() {
+        return mConnectTimeout;
+    }
+
+    public int getReadTimeout() {
+        return mReadTimeout;
+    }
+
+    /** @return how long connecting took, as recorded by the transport. */
+    public RequestTiming getTiming() {
+        return mTiming;
+    }
+
+    /**
+     * Abort the request, closing its connection.  May be called from any
+     * thread, before, during or after {@link HttpTransport#execute}.
+     */
+    public void abort() {
+        final Runnable action;
+        synchronized (this) {
+            mAborted = true;
+            action = mAbortAction;
+        }
+        if (action != null) {
+            action.run();
+        }
+    }
+
+    public synchronized boolean isAborted() {
+        return mAborted;
+    }
+
+    /**
+     * Called by transports before sending: {@code action} is what
+     * {@link #abort()} will run from now on.
+     *
+     * @throws IOException if the request has already been aborted.
+     */
+    synchronized void setAbortAction(Runnable action) throws IOException {
+        if (mAborted) {
+            throw new InterruptedIOException("Request aborted");
+        }
+        mAbortAction = action;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2012 Tatsuo Nagamatsu <nagamatu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.nagamatu.radiko.installer;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The HTTP operations the installer needs, independent of the client
+ * library doing them: GET and form POST with arbitrary headers (Range,
+ * If-Range, Cookie, ...), and a response body read as a stream.
+ *
+ * <p>Implementations must be safe for concurrent use and must let
+ * {@link HttpRequest#abort()} interrupt a request from another thread at
+ * any point, including while its body is being read.
+ *
+ * @see HttpTransports#create
+ */
+interface HttpTransport {
+    /**
+     * Send {@code request} and return once the response headers are in.
+     * The caller must either read the body to the end and
+     * {@link Response#close()} it, or {@link HttpRequest#abort()} the
+     * request.
+     */
+    Response execute(HttpRequest request) throws IOException;
+
+    /**
+     * Start opening {@code count} connections to the host of {@code url}
+     * for requests about to be made.  Best effort; may do nothing.
+     */
+    void warm(String url, int count);
+
+    /** Close all connections.  The transport is unusable afterwards. */
+    void shutdown();
+
+    interface Response {
+        int getStatus();
+
+        String getReason();
+
+        /** @return the first value of the header, or null. */
+        String getHeader(String name);
+
+        /** @return the length of the body, or -1 if not known. */
+        long getContentLength();
+
+        /** @return the body; empty if there is none. */
+        InputStream getBody() throws IOException;
+
+        /**
+         * Release the connection for reuse.  Any unread part of the body is
+         * drained first; abort the request instead to drop it.
+         */
+        void close() throws IOException;
+    }
+
+    /** The server answered with an error status. */
+    class StatusException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int mStatus;
+        private final long mRetryAfterMillis;
+
+        public StatusException(int status, String reason, long retryAfterMillis) {
+            super(status + " " + reason);
+            mStatus = status;
+            mRetryAfterMillis = retryAfterMillis;
+        }
+
+        /** @return the error of {@code response}, whose body is not wanted. */
+        public static StatusException from(Response response) {
+            long retryAfter = -1;
+            final String value = response.getHeader("Retry-After");
+            if (value != null) {
+                try {
+                    retryAfter = Long.parseLong(value.trim()) * 1000;
+                } catch (NumberFormatException e) {
+                    // An HTTP date; not worth parsing for the delays we accept.
+                }
+            }
+            return new StatusException(response.getStatus(), response.getReason(), retryAfter);
+        }
+
+        public int getStatus() {
+            return mStatus;
+        }
+
+        /** @return the delay the server asked for, or -1 if it did not say. */
+        public long getRetryAfterMillis() {
+            return mRetryAfterMillis;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2012 Tatsuo Nagamatsu <nagamatu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.nagamatu.radiko.installer;
+
+import java.io.IOException;
+
+/**
+ * Creates {@link HttpTransport}s by engine name, so that the engine can be
+ * picked at run time (see RadikoInstallerActivity.EXTRA_TRANSPORT).
+ */
+final class HttpTransports {
+    /** Apache HttpClient with {@link MySSLSocketFactory}; the default. */
+    public static final String APACHE = "apache";
+
+    /** The platform's HttpURLConnection. */
+    public static final String URLCONNECTION = "urlconnection";
+
+    private HttpTransports() {
+    }
+
+    /**
+     * @param engine {@link #APACHE}, {@link #URLCONNECTION}, or null for
+     *        the default
+     * @param maxPerRoute connections allowed to a single host at once
+     */
+    public static HttpTransport create(String engine, int maxPerRoute, TransportProfile profile) throws IOException {
+        if (engine == null || APACHE.equals(engine)) {
+            return new ApacheTransport(MySSLSocketFactory.getNewHttpClient(maxPerRoute, profile));
+        }
+        if (URLCONNECTION.equals(engine)) {
+            return new UrlConnectionTransport(maxPerRoute, profile);
+        }
+        throw new IOException("Unknown transport: " + engine);
+    }
+}
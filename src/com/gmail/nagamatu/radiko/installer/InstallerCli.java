@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2012 Tatsuo Nagamatsu <nagamatu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.nagamatu.radiko.installer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the {@link InstallerEngine} on a plain JVM: fetches the APKs of
+ * many packages, for one or more device IDs, into a directory.
+ *
+ * <pre>
+ *   java -cp ... com.gmail.nagamatu.radiko.installer.InstallerCli \
+ *       --email me@gmail.com --device 3f2a... --jobs 8 --out apks \
+ *       jp.radiko.Player @more-packages.txt
+ * </pre>
+ *
+ * The password is taken from {@code --password} or the RADIKO_PASSWORD
+ * environment variable; {@code --token} skips the login.  An argument
+ * starting with '@' names a file with one package per line.  Every device
+ * is run at the same time over one shared connection pool, each into its
+ * own APK cache, and one line is printed per APK.  At the end the
+ * {@link Metrics} of all devices are written as JSON to the file given by
+ * {@code --metrics}, or to stderr.  {@code --timeout download=15000,30000,0}
+ * sets the connect, read and total limits of a phase in milliseconds, and
+ * {@code --retry api=4,250,4000} its attempts and backoff; {@code --hedge 95}
+ * resends lookups slower than the 95th percentile.  All devices download
+ * through one {@link DownloadScheduler}: {@code --max-connections} and
+ * {@code --max-per-host} bound the connections in total and to one host.
+ * Interrupting the process cancels every request in flight.
+ */
+public class InstallerCli {
+    private static final long CACHE_BUDGET = 1024 * 1024 * 1024L;
+
+    private String mEmail;
+    private String mPassword = System.getenv("RADIKO_PASSWORD");
+    private String mToken;
+    private final List<String> mDevices = new ArrayList<String>();
+    private final List<String> mPackages = new ArrayList<String>();
+    private File mOut = new File(".");
+    private String mTransportName;
+    private int mSegments = InstallerEngine.DEFAULT_SEGMENTS;
+    private int mJobs = InstallerEngine.DEFAULT_BATCH_WORKERS;
+    private long mCacheBudget = CACHE_BUDGET;
+    private String mLoginUrl = InstallerEngine.URL_LOGIN;
+    private String mApiUrl = InstallerEngine.URL_API;
+    private File mMetricsFile;
+    private final Map<String, InstallerEngine.Timeouts> mTimeouts = new HashMap<String, InstallerEngine.Timeouts>();
+    private final Map<String, RetryPolicy> mRetryPolicies = new HashMap<String, RetryPolicy>();
+    private double mHedgePercentile;
+    private int mMaxConnections;
+    private int mMaxPerHost;
+    private DownloadScheduler mScheduler;
+
+    private final Metrics mMetrics = new Metrics();
+
+    private final AtomicInteger mApks = new AtomicInteger();
+    private final AtomicLong mBytes = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        final InstallerCli cli = new InstallerCli();
+        try {
+            cli.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            usage();
+            System.exit(2);
+        }
+        System.exit(cli.run() ? 0 : 1);
+    }
+
+    private static void usage() {
+        System.err.println("usage: InstallerCli (--email ADDR [--password PW] | --token TOKEN)"
+                + " --device ID[,ID...] [--out DIR] [--jobs N] [--segments N]"
+                + " [--transport apache|urlconnection] [--cache-budget BYTES]"
+                + " [--login-url URL] [--api-url URL] [--metrics FILE]"
+                + " [--timeout login|api|download=CONNECT_MS,READ_MS,TOTAL_MS]..."
+                + " [--retry login|api|download=ATTEMPTS,BASE_MS,MAX_MS]... [--hedge PERCENTILE]"
+                + " [--max-connections N] [--max-per-host N]"
+                + " package|@file...");
+    }
+
+    private void parse(String[] args) throws IOException {
+        for (int i = 0; i < args.length; i++) {
+            final String arg = args[i];
+            if (!arg.startsWith("--")) {
+                if (arg.startsWith("@")) {
+                    readPackages(new File(arg.substring(1)));
+                } else {
+                    mPackages.add(arg);
+                }
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + arg);
+            }
+            final String value = args[++i];
+            if ("--email".equals(arg)) {
+                mEmail = value;
+            } else if ("--password".equals(arg)) {
+                mPassword = value;
+            } else if ("--token".equals(arg)) {
+                mToken = value;
+            } else if ("--device".equals(arg)) {
+                for (String id : value.split(",")) {
+                    if (id.trim().length() > 0) {
+                        mDevices.add(id.trim());
+                    }
+                }
+            } else if ("--out".equals(arg)) {
+                mOut = new File(value);
+            } else if ("--jobs".equals(arg)) {
+                mJobs = Math.max(1, Integer.parseInt(value));
+            } else if ("--segments".equals(arg)) {
+                mSegments = Math.max(1, Integer.parseInt(value));
+            } else if ("--transport".equals(arg)) {
+                mTransportName = value;
+            } else if ("--cache-budget".equals(arg)) {
+                mCacheBudget = Long.parseLong(value);
+            } else if ("--login-url".equals(arg)) {
+                mLoginUrl = value;
+            } else if ("--api-url".equals(arg)) {
+                mApiUrl = value;
+            } else if ("--metrics".equals(arg)) {
+                mMetricsFile = new File(value);
+            } else if ("--timeout".equals(arg)) {
+                parseTimeouts(value);
+            } else if ("--retry".equals(arg)) {
+                parseRetryPolicy(value);
+            } else if ("--hedge".equals(arg)) {
+                mHedgePercentile = Double.parseDouble(value);
+            } else if ("--max-connections".equals(arg)) {
+                mMaxConnections = Math.max(1, Integer.parseInt(value));
+            } else if ("--max-per-host".equals(arg)) {
+                mMaxPerHost = Math.max(1, Integer.parseInt(value));
+            } else {
+                throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+        if (mPackages.isEmpty() || mDevices.isEmpty()) {
+            throw new IllegalArgumentException("Need at least one package and one device");
+        }
+        if (mToken == null && (mEmail == null || mPassword == null)) {
+            throw new IllegalArgumentException("Need --token, or --email and a password");
+        }
+    }
+
+    private void parseTimeouts(String value) {
+        final int eq = value.indexOf('=');
+        final String[] limits = value.substring(eq + 1).split(",");
+        if (eq <= 0 || limits.length != 3) {
+            throw new IllegalArgumentException("Bad --timeout " + value);
+        }
+        mTimeouts.put(value.substring(0, eq), new InstallerEngine.Timeouts(Integer.parseInt(limits[0].trim()),
+                Integer.parseInt(limits[1].trim()), Long.parseLong(limits[2].trim())));
+    }
+
+    private void parseRetryPolicy(String value) {
+        final int eq = value.indexOf('=');
+        final String[] limits = value.substring(eq + 1).split(",");
+        if (eq <= 0 || limits.length != 3) {
+            throw new IllegalArgumentException("Bad --retry " + value);
+        }
+        mRetryPolicies.put(value.substring(0, eq), new RetryPolicy(Integer.parseInt(limits[0].trim()),
+                Long.parseLong(limits[1].trim()), Long.parseLong(limits[2].trim())));
+    }
+
+    private void readPackages(File file) throws IOException {
+        final BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.length() > 0 && !line.startsWith("#")) {
+                    mPackages.add(line);
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /** @return true if every APK was fetched. */
+    private boolean run() throws IOException {
+        final int connections = mDevices.size() * Math.max(mJobs, mSegments);
+        final int maxTotal = mMaxConnections > 0 ? mMaxConnections : connections;
+        final int maxPerHost = mMaxPerHost > 0 ? mMaxPerHost : maxTotal;
+        mScheduler = new DownloadScheduler(maxTotal, maxPerHost);
+        // The pool must not be what makes a download wait.
+        final HttpTransport transport = HttpTransports.create(mTransportName, Math.max(connections, maxPerHost),
+                TransportProfile.BULK);
+        final long start = System.currentTimeMillis();
+        boolean ok = true;
+        try {
+            final InstallerEngine[] engines = new InstallerEngine[mDevices.size()];
+            for (int i = 0; i < engines.length; i++) {
+                final String device = mDevices.get(i);
+                final File dir = engines.length > 1 ? new File(mOut, device) : mOut;
+                engines[i] = newEngine(transport, device, ApkCache.open(dir, mCacheBudget));
+            }
+            // On ^C, abort the transfers rather than leave them to the
+            // server's idle timeout.
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override
+                public void run() {
+                    for (InstallerEngine engine : engines) {
+                        engine.cancel();
+                    }
+                }
+            });
+            String token = mToken;
+            if (token == null) {
+                token = engines[0].login(mEmail, mPassword);
+            }
+
+            final String[] packages = mPackages.toArray(new String[mPackages.size()]);
+            final Thread[] threads = new Thread[engines.length];
+            final boolean[] results = new boolean[engines.length];
+            for (int i = 0; i < engines.length; i++) {
+                final InstallerEngine engine = engines[i];
+                final String device = mDevices.get(i);
+                final int index = i;
+                engine.setAuthToken(token);
+                threads[i] = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            engine.run(packages);
+                            results[index] = true;
+                        } catch (Exception e) {
+                            System.err.println(device + ": " + e);
+                        }
+                    }
+                }, "device-" + device);
+                threads[i].start();
+            }
+            for (int i = 0; i < threads.length; i++) {
+                try {
+                    threads[i].join();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted");
+                }
+                ok &= results[i];
+            }
+        } finally {
+            transport.shutdown();
+        }
+
+        final long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        System.err.println(mApks.get() + " APKs, " + mBytes.get() + " bytes in " + elapsed + " ms ("
+                + (mBytes.get() * 1000 / elapsed / 1024) + " KB/s)");
+        writeMetrics(mMetrics.snapshot());
+        return ok;
+    }
+
+    private void writeMetrics(Metrics.Snapshot snapshot) throws IOException {
+        if (mMetricsFile == null) {
+            System.err.println(snapshot.toJson());
+            return;
+        }
+        final Writer out = new OutputStreamWriter(new FileOutputStream(mMetricsFile), "UTF-8");
+        try {
+            out.write(snapshot.toJson());
+            out.write('\n');
+        } finally {
+            out.close();
+        }
+    }
+
+    private InstallerEngine newEngine(HttpTransport transport, final String device, ApkCache cache) {
+        final InstallerEngine[] self = new InstallerEngine[1];
+        final InstallerEngine engine = new InstallerEngine(transport, DeviceProfile.forDevice(device), cache,
+                new InstallerEngine.Listener() {
+                    public void onProgress(int percent) {
+                    }
+
+                    public void onStatus(int status) {
+                    }
+
+                    public String onTokenRejected(String rejected) throws IOException {
+                        return mEmail != null && mPassword != null ? self[0].login(mEmail, mPassword) : null;
+                    }
+
+                    public void onApkReady(String packageName, File apk) {
+                        mApks.incrementAndGet();
+                        mBytes.addAndGet(apk.length());
+                        System.out.println(device + "\t" + packageName + "\t" + apk.length() + "\t" + apk.getPath());
+                    }
+
+                    public void onMetrics(Metrics.Snapshot snapshot) {
+                        // Shared by every device; written once at the end.
+                    }
+                }, new Executor() {
+                    public void execute(Runnable command) {
+                        command.run();
+                    }
+                });
+        self[0] = engine;
+        engine.setMetrics(mMetrics);
+        for (Map.Entry<String, InstallerEngine.Timeouts> e : mTimeouts.entrySet()) {
+            engine.setTimeouts(e.getKey(), e.getValue());
+        }
+        for (Map.Entry<String, RetryPolicy> e : mRetryPolicies.entrySet()) {
+            engine.setRetryPolicy(e.getKey(), e.getValue());
+        }
+        engine.setHedging(mHedgePercentile);
+        engine.setScheduler(mScheduler);
+        engine.setEndpoints(mLoginUrl, mApiUrl);
+        engine.setSegments(mSegments);
+        engine.setBatchWorkers(mJobs);
+        return engine;
+    }
+}
@@ -0,0 +1,1151 @@
+/*
+ * Copyright (C) 2012 Tatsuo Nagamatsu <nagamatu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gmail.nagamatu.radiko.installer;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Logs in, asks the Market for packages and downloads their APKs, without
+ * depending on Android.
+ *
+ * <p>Everything is reported through a {@link Listener}: status changes,
+ * progress (posted on the executor given to the constructor) and finished
+ * APKs.  What to do with an APK, and how to get a new token when the
+ * current one is rejected, is up to the client, which is either the
+ * Activity or {@link InstallerCli}.  The methods block and are meant to be
+ * called off the UI thread.
+ *
+ * <p>Every request and download is recorded into a {@link Metrics}, which
+ * several engines may share; the listener gets a snapshot of it at the
+ * end of each run.
+ *
+ * <p>Each phase (login, API request, download) runs under its own
+ * {@link Timeouts}; a phase which takes too long, or is {@link #cancel()}ed,
+ * has its requests aborted and fails with a {@link DeadlineException} or a
+ * {@link CancelledException}.  Within its time, a phase that fails is
+ * retried as its {@link RetryPolicy} allows; lookups may also be hedged
+ * (see {@link #setHedging}).
+ *
+ * <p>Downloads only use the network when their {@link DownloadScheduler}
+ * lets them, which bounds the connections per host and in total and
+ * serves small APKs first.
+ */
+class InstallerEngine {
+    public static final String URL_LOGIN = "https://www.google.com/accounts/ClientLogin";
+    public static final String URL_API = "https://android.clients.google.com/market/api/ApiRequest";
+    public static final String LOGIN_SERVICE = "androidsecure";
+
+    public static final int STATUS_LOGIN = 0;
+    public static final int STATUS_REQUEST = 1;
+    public static final int STATUS_DOWNLOAD = 2;
+    public static final int STATUS_INSTALL = 3;
+
+    private static final String ACCOUNT_TYPE_HOSTED_OR_GOOGLE = "HOSTED_OR_GOOGLE";
+    private static final int PROTOCOL_VERSION = 2;
+
+    private static final String PARAMS_EMAIL = "Email";
+    private static final String PARAMS_PASSWD = "Passwd";
+    private static final String PARAMS_SERVICE = "service";
+    private static final String PARAMS_ACCOUNTTYPE = "accountType";
+    private static final String KEY_AUTH = "Auth";
+
+    /** Buffer for parsing small responses byte by byte. */
+    private static final int BUFSIZE = 4096;
+    /** Compressed input per inflate call; about a network read. */
+    private static final int GZIP_BUFSIZE = 8192;
+    private static final int SYNC_POLICY = DownloadSink.SYNC_EVERY;
+    private static final int SYNC_INTERVAL = 1024 * 1024;
+
+    public static final int DEFAULT_SEGMENTS = 4;
+    public static final int DEFAULT_BATCH_WORKERS = 3;
+
+    interface Listener extends ProgressReporter.Listener {
+        /** One of the STATUS constants; called on the engine's thread. */
+        void onStatus(int status);
+
+        /**
+         * The server refused {@code rejected}.  Called at most once per
+         * engine, on the engine's thread.
+         *
+         * @return a new token, or null if none can be had without asking
+         *         the user; {@link #run} then fails with an
+         *         {@link AuthException}.
+         */
+        String onTokenRejected(String rejected) throws IOException;
+
+        /** {@code apk} is complete and verified.  May be called from several threads. */
+        void onApkReady(String packageName, File apk);
+
+        /** {@link #run} is over, successfully or not; called on the engine's thread. */
+        void onMetrics(Metrics.Snapshot snapshot);
+    }
+
+    /** The token was rejected and no other one could be had. */
+    static class AuthException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        AuthException(String message) {
+            super(message);
+        }
+    }
+
+    /** A phase ran out of time connecting, waiting for data, or overall. */
+    static class DeadlineException extends InterruptedIOException {
+        private static final long serialVersionUID = 1L;
+
+        public static final int CONNECT = 0;
+        public static final int READ = 1;
+        public static final int TOTAL = 2;
+
+        private static final String[] KINDS = { "connect", "read", "total" };
+
+        private final String mPhase;
+        private final int mKind;
+
+        DeadlineException(String phase, int kind, String detail) {
+            super(phase + ": " + KINDS[kind] + " deadline exceeded" + (detail != null ? " (" + detail + ")" : ""));
+            mPhase = phase;
+            mKind = kind;
+        }
+
+        public String getPhase() {
+            return mPhase;
+        }
+
+        /** @return {@link #CONNECT}, {@link #READ} or {@link #TOTAL}. */
+        public int getKind() {
+            return mKind;
+        }
+
+        public String getKindName() {
+            return KINDS[mKind];
+        }
+    }
+
+    /** {@link InstallerEngine#cancel()} was called while the phase ran. */
+    static class CancelledException extends InterruptedIOException {
+        private static final long serialVersionUID = 1L;
+
+        CancelledException(String phase) {
+            super(phase + ": cancelled");
+        }
+    }
+
+    /**
+     * Limits for one phase: connect and read timeouts for every request,
+     * and the time the whole phase may take; 0 leaves the transport's
+     * default, or sets no overall limit.
+     */
+    static final class Timeouts {
+        public final int connectMillis;
+        public final int readMillis;
+        public final long totalMillis;
+
+        public Timeouts(int connectMillis, int readMillis, long totalMillis) {
+            this.connectMillis = connectMillis;
+            this.readMillis = readMillis;
+            this.totalMillis = totalMillis;
+        }
+    }
+
+    public static final Timeouts LOGIN_TIMEOUTS = new Timeouts(15 * 1000, 20 * 1000, 45 * 1000);
+    public static final Timeouts API_TIMEOUTS = new Timeouts(15 * 1000, 20 * 1000, 45 * 1000);
+    public static final Timeouts DOWNLOAD_TIMEOUTS = new Timeouts(15 * 1000, 30 * 1000, 15 * 60 * 1000);
+
+    /** A login is not repeated unless it cannot have reached the server, see {@link #login}. */
+    public static final RetryPolicy LOGIN_RETRY = new RetryPolicy(2, 500, 4 * 1000);
+    public static final RetryPolicy API_RETRY = new RetryPolicy(4, 250, 4 * 1000);
+    public static final RetryPolicy DOWNLOAD_RETRY = new RetryPolicy(3, 1000, 10 * 1000);
+
+    /** Hedge only once the latency percentile rests on this many lookups. */
+    private static final int HEDGE_MIN_SAMPLES = 20;
+
+    private static ExecutorService sHedgeExecutor;
+
+    /** A part of a phase which may be run more than once. */
+    private interface Attempt<T> {
+        T run() throws IOException;
+    }
+
+    private final HttpTransport mTransport;
+    private final MarketRequest mRequestTemplate;
+    private final ApkCache mApkCache;
+    private final Listener mListener;
+    private final ProgressReporter mProgress;
+
+    private String mLoginUrl = URL_LOGIN;
+    private String mApiUrl = URL_API;
+    private int mSegments = DEFAULT_SEGMENTS;
+    private int mBatchWorkers = DEFAULT_BATCH_WORKERS;
+    private DownloadScheduler mScheduler;
+    private int mPriority = DownloadScheduler.PRIORITY_DEFAULT;
+    private Metrics mMetrics = new Metrics();
+    private final BufferPool mBufferPool = BufferPool.getDefault();
+
+    private final Map<String, Timeouts> mTimeouts = new HashMap<String, Timeouts>();
+    private final Map<String, RetryPolicy> mRetryPolicies = new HashMap<String, RetryPolicy>();
+    private volatile double mHedgePercentile;
+    private final Set<Deadline> mRunning = new HashSet<Deadline>();
+    /** APKs handed out by this run, kept from eviction until it ends. */
+    private final List<ApkCache.Pin> mPins = new ArrayList<ApkCache.Pin>();
+    private volatile boolean mCancelled;
+
+    private volatile String mAuth;
+    private boolean mAuthRetried;
+
+    /**
+     * @param progressExecutor where {@link Listener#onProgress(int)} is
+     *        called, e.g. the UI thread
+     */
+    public InstallerEngine(HttpTransport transport, DeviceProfile profile, ApkCache apkCache, Listener listener,
+            Executor progressExecutor) {
+        mTransport = transport;
+        mRequestTemplate = MarketRequest.forProfile(profile);
+        mApkCache = apkCache;
+        mListener = listener;
+        mProgress = new ProgressReporter(progressExecutor, listener);
+        mTimeouts.put(Metrics.PHASE_LOGIN, LOGIN_TIMEOUTS);
+        mTimeouts.put(Metrics.PHASE_API, API_TIMEOUTS);
+        mTimeouts.put(Metrics.PHASE_DOWNLOAD, DOWNLOAD_TIMEOUTS);
+        mRetryPolicies.put(Metrics.PHASE_LOGIN, LOGIN_RETRY);
+        mRetryPolicies.put(Metrics.PHASE_API, API_RETRY);
+        mRetryPolicies.put(Metrics.PHASE_DOWNLOAD, DOWNLOAD_RETRY);
+    }
+
+    /** Talk to other servers than Google's, e.g. a mirror or a test server. */
+    public void setEndpoints(String loginUrl, String apiUrl) {
+        mLoginUrl = loginUrl;
+        mApiUrl = apiUrl;
+    }
+
+    /** Number of concurrent Range requests for a single download. */
+    public void setSegments(int segments) {
+        mSegments = segments;
+    }
+
+    /**
+     * Number of packages looked up at the same time by a batch.  As many
+     * more may wait for the scheduler, which picks the smallest first.
+     */
+    public void setBatchWorkers(int workers) {
+        mBatchWorkers = workers;
+    }
+
+    /**
+     * Download through {@code scheduler}, e.g. one shared by several
+     * engines.  By default each engine has its own, allowing as many
+     * connections as the larger of the segments and the batch workers.
+     */
+    public synchronized void setScheduler(DownloadScheduler scheduler) {
+        mScheduler = scheduler;
+    }
+
+    /** @param priority the priority of this engine's downloads in its scheduler */
+    public void setPriority(int priority) {
+        mPriority = priority;
+    }
+
+    private synchronized DownloadScheduler getScheduler() {
+        if (mScheduler == null) {
+            final int connections = Math.max(mSegments, mBatchWorkers);
+            mScheduler = new DownloadScheduler(connections, connections);
+        }
+        return mScheduler;
+    }
+
+    /** Record into {@code metrics}, e.g. one shared by several engines. */
+    public void setMetrics(Metrics metrics) {
+        mMetrics = metrics;
+    }
+
+    public Metrics getMetrics() {
+        return mMetrics;
+    }
+
+    /** @param phase one of the Metrics.PHASE constants */
+    public void setTimeouts(String phase, Timeouts timeouts) {
+        synchronized (mTimeouts) {
+            mTimeouts.put(phase, timeouts);
+        }
+    }
+
+    /** @param phase one of the Metrics.PHASE constants */
+    public void setRetryPolicy(String phase, RetryPolicy policy) {
+        synchronized (mRetryPolicies) {
+            mRetryPolicies.put(phase, policy);
+        }
+    }
+
+    /**
+     * Send a second lookup if the first has not been answered after the
+     * {@code percentile}th percentile of the lookup times seen so far, and
+     * take whichever answer comes first.  0 turns hedging off, which is
+     * the default.
+     */
+    public void setHedging(double percentile) {
+        mHedgePercentile = percentile;
+    }
+
+    /**
+     * Abort whatever the engine is doing, from any thread: requests in
+     * flight are aborted, which closes their connections at once, and the
+     * blocked call fails with a {@link CancelledException}, as does every
+     * later one.
+     */
+    public void cancel() {
+        final Deadline[] running;
+        synchronized (mRunning) {
+            mCancelled = true;
+            running = mRunning.toArray(new Deadline[mRunning.size()]);
+        }
+        for (Deadline deadline : running) {
+            deadline.cancel();
+        }
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /** Start the clock of a phase. */
+    private Deadline begin(String phase) throws IOException {
+        final Timeouts timeouts;
+        synchronized (mTimeouts) {
+            timeouts = mTimeouts.get(phase);
+        }
+        return begin(phase, timeouts.totalMillis);
+    }
+
+    /** @param totalMillis how long the phase may take, or 0 for no limit */
+    private Deadline begin(String phase, long totalMillis) throws IOException {
+        final Deadline deadline = new Deadline(phase, totalMillis);
+        synchronized (mRunning) {
+            if (!mCancelled) {
+                mRunning.add(deadline);
+                return deadline;
+            }
+        }
+        deadline.close();
+        throw new CancelledException(phase);
+    }
+
+    private void end(Deadline deadline) {
+        synchronized (mRunning) {
+            mRunning.remove(deadline);
+        }
+        deadline.close();
+    }
+
+    /** Apply the phase's timeouts to {@code request} and abort it with the phase. */
+    private HttpRequest prepare(Deadline deadline, HttpRequest request) throws IOException {
+        final Timeouts timeouts = getTimeouts(deadline.getPhase());
+        request.setTimeouts(timeouts.connectMillis, timeouts.readMillis);
+        deadline.check();
+        deadline.watch(request);
+        return request;
+    }
+
+    private Timeouts getTimeouts(String phase) {
+        synchronized (mTimeouts) {
+            return mTimeouts.get(phase);
+        }
+    }
+
+    /**
+     * Run {@code attempt} until it succeeds, or until the phase's retry
+     * policy or its deadline says to give up.
+     *
+     * @param idempotent whether running the attempt twice is harmless
+     */
+    private <T> T retry(Deadline deadline, boolean idempotent, Attempt<T> attempt) throws IOException {
+        final String phase = deadline.getPhase();
+        final RetryPolicy policy;
+        synchronized (mRetryPolicies) {
+            policy = mRetryPolicies.get(phase);
+        }
+        for (int n = 1; ; n++) {
+            try {
+                final T result = attempt.run();
+                if (n > 1) {
+                    mMetrics.counter(phase + ".retry.recovered").increment();
+                }
+                return result;
+            } catch (IOException e) {
+                final IOException failure = deadline.translate(e);
+                final long delay = policy.getDelay(failure, n);
+                if (!policy.shouldRetry(failure, n, idempotent) || delay >= deadline.getRemainingMillis()) {
+                    if (n > 1) {
+                        mMetrics.counter(phase + ".retry.exhausted").increment();
+                    }
+                    throw failure;
+                }
+                mMetrics.counter(phase + ".retries").increment();
+                mMetrics.counter(phase + ".retried." + failure.getClass().getSimpleName()).increment();
+                deadline.sleep(delay);
+            }
+        }
+    }
+
+    /** Record {@code e} as a failure of the deadline's phase and tell what it really was. */
+    private IOException fail(Deadline deadline, IOException e) {
+        final IOException failure = deadline.translate(e);
+        mMetrics.recordError(deadline.getPhase(), failure);
+        return failure;
+    }
+
+    public void setAuthToken(String token) {
+        mAuth = token;
+    }
+
+    public String getAuthToken() {
+        return mAuth;
+    }
+
+    /** Get the login and API hosts connected, e.g. while a password is typed in. */
+    public void warm() {
+        mTransport.warm(mLoginUrl, 1);
+        mTransport.warm(mApiUrl, 1);
+    }
+
+    /**
+     * Sign in with ClientLogin and keep the token for the following
+     * requests.
+     *
+     * @return the token.
+     */
+    public String login(final String email, final String password) throws IOException {
+        mListener.onStatus(STATUS_LOGIN);
+        final Deadline deadline = begin(Metrics.PHASE_LOGIN);
+        final String auth;
+        try {
+            // Not idempotent as far as retrying goes: repeating a password
+            // the server may have seen risks tripping its abuse checks.
+            auth = retry(deadline, false, new Attempt<String>() {
+                public String run() throws IOException {
+                    return loginOnce(deadline, email, password);
+                }
+            });
+        } catch (IOException e) {
+            throw fail(deadline, e);
+        } finally {
+            end(deadline);
+        }
+        mAuth = auth;
+        return auth;
+    }
+
+    private String loginOnce(Deadline deadline, String email, String password) throws IOException {
+        final HttpRequest request = HttpRequest.postForm(mLoginUrl,
+                PARAMS_EMAIL, email,
+                PARAMS_PASSWD, password,
+                PARAMS_SERVICE, LOGIN_SERVICE,
+                PARAMS_ACCOUNTTYPE, ACCOUNT_TYPE_HOSTED_OR_GOOGLE);
+        final long start = System.nanoTime();
+        final HttpTransport.Response response = mTransport.execute(prepare(deadline, request));
+        final long headers = System.nanoTime();
+        if (response.getStatus() >= 400) {
+            request.abort();
+            throw HttpTransport.StatusException.from(response);
+        }
+        String auth = null;
+        final InputStream in = new PooledInputStream(response.getBody(), mBufferPool, BUFSIZE);
+        try {
+            final DataInputStream din = new DataInputStream(in);
+            String line;
+            while ((line = din.readLine()) != null) {
+                final int eq = line.indexOf('=');
+                if (eq > 0 && KEY_AUTH.equals(line.substring(0, eq))) {
+                    auth = line.substring(eq + 1);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        mMetrics.recordRequest(Metrics.PHASE_LOGIN, request, start, headers, System.nanoTime());
+        if (auth == null) {
+            throw new IOException("No Auth token in login response");
+        }
+        return auth;
+    }
+
+    /**
+     * Look up and download {@code packages}, handing each APK to the
+     * listener.  A single package is fetched over several segments with
+     * byte progress; several are fetched side by side and the progress
+     * counts packages.
+     */
+    public void run(String[] packages) throws IOException {
+        try {
+            mListener.onStatus(STATUS_REQUEST);
+            // The first lookup also proves the token, and is the only one
+            // which may trigger a new login.
+            final MarketResponse res = lookup(packages[0], true);
+            mListener.onStatus(STATUS_DOWNLOAD);
+            if (packages.length > 1) {
+                downloadBatch(packages, res);
+                return;
+            }
+            final File file = fetchApk(packages[0], res, mProgress, mSegments);
+            mListener.onStatus(STATUS_INSTALL);
+            mListener.onApkReady(packages[0], file);
+        } finally {
+            synchronized (mPins) {
+                for (ApkCache.Pin pin : mPins) {
+                    pin.release();
+                }
+                mPins.clear();
+            }
+            mListener.onMetrics(mMetrics.snapshot());
+        }
+    }
+
+    /**
+     * Ask the Market where to download {@code packageName} from.
+     *
+     * @param mayReauthenticate whether a rejected token may be replaced
+     */
+    public MarketResponse lookup(final String packageName, final boolean mayReauthenticate) throws IOException {
+        final Deadline deadline = begin(Metrics.PHASE_API);
+        try {
+            // A lookup changes nothing on the server.
+            return retry(deadline, true, new Attempt<MarketResponse>() {
+                public MarketResponse run() throws IOException {
+                    return lookupOnce(deadline, packageName, mayReauthenticate);
+                }
+            });
+        } catch (IOException e) {
+            throw fail(deadline, e);
+        } finally {
+            end(deadline);
+        }
+    }
+
+    private MarketResponse lookupOnce(Deadline deadline, String packageName, boolean mayReauthenticate)
+            throws IOException {
+        final String auth = mAuth;
+        try {
+            return requestAsset(deadline, auth, packageName);
+        } catch (HttpTransport.StatusException e) {
+            final int status = e.getStatus();
+            if ((status == 401 || status == 403) && mayReauthenticate && !mAuthRetried) {
+                mAuthRetried = true;
+                final String token = mListener.onTokenRejected(auth);
+                if (token == null) {
+                    throw new AuthException(e.getMessage());
+                }
+                mAuth = token;
+                return lookupOnce(deadline, packageName, false);
+            }
+            throw e;
+        }
+    }
+
+    /** Send the ApiRequest, hedged if enabled and enough is known about its latency. */
+    private MarketResponse requestAsset(Deadline deadline, String auth, String packageName) throws IOException {
+        final long delay = getHedgeDelayMillis();
+        final HttpRequest request = newAssetRequest(auth, packageName);
+        if (delay < 0) {
+            return exchangeAsset(deadline, request, packageName);
+        }
+
+        final CompletionService<MarketResponse> completion =
+                new ExecutorCompletionService<MarketResponse>(getHedgeExecutor());
+        final HttpRequest[] requests = { request, null };
+        final Future<?>[] futures = new Future<?>[2];
+        futures[0] = completion.submit(newExchange(deadline, request, packageName));
+        int pending = 1;
+        IOException failure = null;
+        try {
+            Future<MarketResponse> done = completion.poll(delay, TimeUnit.MILLISECONDS);
+            if (done == null) {
+                requests[1] = newAssetRequest(auth, packageName);
+                futures[1] = completion.submit(newExchange(deadline, requests[1], packageName));
+                pending++;
+                mMetrics.counter(Metrics.PHASE_API + ".hedge.sent").increment();
+            }
+            for (; pending > 0; pending--) {
+                if (done == null) {
+                    done = completion.take();
+                }
+                try {
+                    final MarketResponse res = done.get();
+                    if (done == futures[1]) {
+                        mMetrics.counter(Metrics.PHASE_API + ".hedge.won").increment();
+                    }
+                    return res;
+                } catch (ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    if (failure == null) {
+                        failure = cause instanceof IOException ? (IOException)cause : new IOException(cause.toString());
+                    }
+                }
+                done = null;
+            }
+            throw failure;
+        } catch (InterruptedException e) {
+            throw new CancelledException(Metrics.PHASE_API);
+        } finally {
+            // The loser, if any, is not wanted any more.
+            for (HttpRequest r : requests) {
+                if (r != null) {
+                    r.abort();
+                }
+            }
+        }
+    }
+
+    private Callable<MarketResponse> newExchange(final Deadline deadline, final HttpRequest request,
+            final String packageName) {
+        return new Callable<MarketResponse>() {
+            public MarketResponse call() throws IOException {
+                return exchangeAsset(deadline, request, packageName);
+            }
+        };
+    }
+
+    /**
+     * @return how long to wait for a lookup before hedging it, or -1 not
+     *         to hedge.
+     */
+    private long getHedgeDelayMillis() {
+        final double percentile = mHedgePercentile;
+        if (percentile <= 0) {
+            return -1;
+        }
+        final Metrics.HistogramSnapshot latency = mMetrics.histogram(Metrics.PHASE_API + ".total").snapshot();
+        if (latency.count < HEDGE_MIN_SAMPLES) {
+            return -1;
+        }
+        return latency.percentile(percentile) / 1000;
+    }
+
+    private static synchronized ExecutorService getHedgeExecutor() {
+        if (sHedgeExecutor == null) {
+            sHedgeExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "Lookup");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sHedgeExecutor;
+    }
+
+    private HttpRequest newAssetRequest(String auth, String packageName) throws IOException {
+        String request64 = Base64.encodeToString(
+                mRequestTemplate.build(auth, packageName), Base64.URL_SAFE);
+        final HttpRequest request = HttpRequest.postForm(mApiUrl,
+                "version", String.valueOf(PROTOCOL_VERSION),
+                "request", request64);
+        request.addHeader("User-Agent", "Android-Market/2");
+        request.addHeader("Cookie", "ANDROIDSECURE=" + auth);
+        return request;
+    }
+
+    private MarketResponse exchangeAsset(Deadline deadline, HttpRequest request, String packageName)
+            throws IOException {
+        final long start = System.nanoTime();
+        final HttpTransport.Response response = mTransport.execute(prepare(deadline, request));
+        final long headers = System.nanoTime();
+        if (response.getStatus() >= 400) {
+            request.abort();
+            mMetrics.recordRequest(Metrics.PHASE_API, request, start, headers, System.nanoTime());
+            throw HttpTransport.StatusException.from(response);
+        }
+
+        // The transport buffers the raw body, and the parser reads the
+        // inflated one in blocks of its own.
+        InputStream in = response.getBody();
+        final MarketResponse res;
+        try {
+            in = new GZIPInputStream(in, GZIP_BUFSIZE);
+            res = MarketResponse.parse(in);
+        } finally {
+            // Nothing after the fields we need is of interest; drop the
+            // rest of the body instead of draining it.
+            request.abort();
+            closeQuietly(in);
+            mMetrics.recordRequest(Metrics.PHASE_API, request, start, headers, System.nanoTime());
+        }
+        if (!res.isComplete()) {
+            throw new IOException("Missing URL or MarketDA in response for " + packageName);
+        }
+        return res;
+    }
+
+    /**
+     * Look up and download every package on a bounded pool, handing each
+     * APK over as soon as it is complete.  The progress counts finished
+     * packages.
+     *
+     * @param first the already known response for the first package
+     * @throws IOException listing every package which failed.
+     */
+    private void downloadBatch(final String[] packages, final MarketResponse first) throws IOException {
+        // Lookups run ahead of the downloads, so that the scheduler has
+        // sizes to choose from.
+        final int workers = Math.min(2 * mBatchWorkers, packages.length);
+        final ExecutorService executor = Executors.newFixedThreadPool(workers);
+        final List<Future<Void>> futures = new ArrayList<Future<Void>>(packages.length);
+        mProgress.start(packages.length, 0);
+        // The APKs usually come from the same host; have a connection
+        // ready for every other download the scheduler lets through.
+        mTransport.warm(first.getDownloadUrl(), Math.min(getScheduler().getMaxPerHost(), packages.length) - 1);
+        for (int i = 0; i < packages.length; i++) {
+            final String packageName = packages[i];
+            final MarketResponse known = i == 0 ? first : null;
+            futures.add(executor.submit(new Callable<Void>() {
+                public Void call() throws IOException {
+                    try {
+                        final MarketResponse res = known != null ? known : lookup(packageName, false);
+                        // Parallelism comes from the scheduler here; one
+                        // connection per package lets it serve more of them.
+                        mListener.onApkReady(packageName, fetchApk(packageName, res, newSilentProgress(), 1));
+                        return null;
+                    } finally {
+                        mProgress.add(1);
+                    }
+                }
+            }));
+        }
+        executor.shutdown();
+
+        final StringBuilder errors = new StringBuilder();
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                futures.get(i).get();
+            } catch (ExecutionException e) {
+                errors.append(packages[i]).append(": ").append(e.getCause()).append('\n');
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                errors.append(packages[i]).append(": interrupted\n");
+                break;
+            }
+        }
+        if (errors.length() > 0) {
+            throw new IOException(errors.toString());
+        }
+    }
+
+    /** Progress for a download nobody is watching; nothing is ever posted. */
+    private static ProgressReporter newSilentProgress() {
+        return new ProgressReporter(new Executor() {
+            public void execute(Runnable command) {
+            }
+        }, null);
+    }
+
+    /**
+     * Download {@code packageName} as described by {@code res}, resuming an
+     * earlier attempt if possible, and verify it on the way.  A copy of the
+     * same version in the APK cache is revalidated instead and served if
+     * the server says it is unchanged.
+     *
+     * @return the complete APK.
+     */
+    public File fetchApk(final String packageName, final MarketResponse res, final ProgressReporter progress,
+            final int segments) throws IOException {
+        final DownloadScheduler.Ticket ticket = acquireSlot(res);
+        try {
+            // The phase clock starts once the download may run; its retries
+            // keep the slot.
+            final Deadline deadline = begin(Metrics.PHASE_DOWNLOAD);
+            try {
+                // A retry resumes from whatever the failed attempt committed.
+                return retry(deadline, true, new Attempt<File>() {
+                    public File run() throws IOException {
+                        return fetchOnce(deadline, packageName, res, progress, segments);
+                    }
+                });
+            } catch (IOException e) {
+                throw fail(deadline, e);
+            } finally {
+                end(deadline);
+            }
+        } finally {
+            ticket.release();
+        }
+    }
+
+    /**
+     * Wait for the scheduler to let the download of {@code res} run.  The
+     * wait has no time limit of its own; only {@link #cancel()} ends it.
+     */
+    private DownloadScheduler.Ticket acquireSlot(MarketResponse res) throws IOException {
+        final Deadline queued = begin(Metrics.PHASE_DOWNLOAD, 0);
+        final long start = System.nanoTime();
+        try {
+            return getScheduler().acquire(res.getDownloadUrl(), mPriority, res.getSize(), queued);
+        } catch (IOException e) {
+            throw fail(queued, e);
+        } finally {
+            mMetrics.histogram("scheduler.wait").record((System.nanoTime() - start) / 1000);
+            end(queued);
+        }
+    }
+
+    private File fetchOnce(Deadline deadline, String packageName, MarketResponse res, ProgressReporter progress,
+            int segments) throws IOException {
+        final ApkCache.Pin pin = mApkCache.pin(packageName, res.getVersionCode());
+        boolean done = false;
+        try {
+            final File file = fetchPinned(deadline, packageName, res, progress, segments);
+            synchronized (mPins) {
+                mPins.add(pin);
+            }
+            done = true;
+            return file;
+        } finally {
+            if (!done) {
+                pin.release();
+            }
+        }
+    }
+
+    private File fetchPinned(Deadline deadline, String packageName, MarketResponse res, ProgressReporter progress,
+            int segments) throws IOException {
+        final String urlstr = res.getDownloadUrl();
+        final int versionCode = res.getVersionCode();
+        final ApkCache.Entry cached = mApkCache.get(packageName, versionCode);
+        final File file = mApkCache.getFile(packageName, versionCode);
+        final File part = new File(file.getPath() + ".part");
+        final DownloadJournal journal = DownloadJournal.open(new File(file.getPath() + ".journal"));
+
+        final long start = System.nanoTime();
+        long offset = 0;
+        if (cached != null) {
+            journal.delete();
+            part.delete();
+        } else if (part.exists() && journal.canResume(urlstr) && journal.getCommitted() <= part.length()) {
+            offset = journal.getCommitted();
+        }
+
+        final long transferred;
+        try {
+            if (cached != null) {
+                transferred = downloadResumable(deadline, res, part, journal, 0, progress, cached);
+                if (transferred < 0) {
+                    mMetrics.counter("cache.hits").increment();
+                    mApkCache.touch(cached);
+                    return cached.file;
+                }
+            } else if (offset == 0 && segments > 1) {
+                transferred = downloadSegmented(deadline, res, part, journal, progress, segments);
+            } else {
+                transferred = downloadResumable(deadline, res, part, journal, offset, progress, null);
+            }
+        } catch (IntegrityChecker.CorruptException e) {
+            // Resuming would only keep the bad bytes.
+            journal.delete();
+            part.delete();
+            throw e;
+        }
+        mMetrics.recordRate(Metrics.PHASE_DOWNLOAD, transferred, System.nanoTime() - start);
+
+        if (file.exists()) {
+            file.delete();
+        }
+        if (!part.renameTo(file)) {
+            throw new IOException("Cannot rename " + part);
+        }
+        final String etag = journal.getETag();
+        final String lastModified = journal.getLastModified();
+        journal.delete();
+        mApkCache.put(packageName, versionCode, etag, lastModified);
+        return file;
+    }
+
+    private IntegrityChecker newChecker(MarketResponse res) {
+        final String digest = res.getSignature();
+        if (digest != null && IntegrityChecker.parseDigest(digest) == null) {
+            mMetrics.counter("download.digest.unrecognized").increment();
+        }
+        return new IntegrityChecker(res.getSize() > 0 ? res.getSize() : -1, digest);
+    }
+
+    /**
+     * @param segments the most segments to use; beyond the first, only
+     *        those the scheduler has spare connections for are used.
+     * @return the number of bytes received.
+     */
+    private long downloadSegmented(Deadline deadline, MarketResponse res, File part, DownloadJournal journal,
+            ProgressReporter progress, int segments) throws IOException {
+        final String urlstr = res.getDownloadUrl();
+        final List<DownloadScheduler.Ticket> extra = new ArrayList<DownloadScheduler.Ticket>();
+        try {
+            // Further segments only take connections nobody waits for.
+            while (extra.size() + 1 < segments) {
+                final DownloadScheduler.Ticket ticket = getScheduler().tryAcquire(urlstr);
+                if (ticket == null) {
+                    mMetrics.counter("scheduler.segments.denied").add(segments - 1 - extra.size());
+                    break;
+                }
+                extra.add(ticket);
+            }
+            // The first segment connects on its own; open the others'
+            // connections while it waits for the response headers.
+            mTransport.warm(urlstr, extra.size());
+            return downloadSegments(deadline, res, part, journal, progress, extra.size() + 1);
+        } finally {
+            for (DownloadScheduler.Ticket ticket : extra) {
+                ticket.release();
+            }
+        }
+    }
+
+    private long downloadSegments(Deadline deadline, MarketResponse res, File part, DownloadJournal journal,
+            ProgressReporter progress, int segments) throws IOException {
+        final String urlstr = res.getDownloadUrl();
+        final String marketDa = res.getMarketDa();
+        journal.delete();
+        part.delete();
+        final SegmentedDownloader downloader = new SegmentedDownloader(mTransport, urlstr, marketDa,
+                openSink(part, 0), segments);
+        downloader.setMetrics(mMetrics);
+        final Timeouts timeouts = getTimeouts(deadline.getPhase());
+        downloader.setTimeouts(timeouts.connectMillis, timeouts.readMillis);
+        deadline.onAbort(new Runnable() {
+            public void run() {
+                downloader.cancel();
+            }
+        });
+        // Segments land out of order; the checker reads the gap-free head
+        // back while it is still cached, right behind the writers.
+        final IntegrityChecker checker = newChecker(res);
+        checker.setAbortAction(new Runnable() {
+            public void run() {
+                downloader.cancel();
+            }
+        });
+        boolean verified = false;
+        try {
+            checker.follow(part, 0, new IntegrityChecker.Source() {
+                public long getLength() {
+                    return downloader.getLength();
+                }
+
+                public long getAvailable() {
+                    return downloader.getContiguousLength();
+                }
+            });
+            downloader.download(progress);
+            checker.finish();
+            verified = true;
+            journal.setValidators(downloader.getETag(), downloader.getLastModified());
+            return downloader.getLength();
+        } catch (IOException e) {
+            checker.cancel();
+            if (checker.getError() != null) {
+                throw checker.getError();
+            }
+            // Keep the gap-free head of the file so the next attempt can
+            // resume it with a single Range request.
+            if (downloader.getLength() > 0) {
+                journal.setSource(urlstr, marketDa);
+                journal.setValidators(downloader.getETag(), downloader.getLastModified());
+                journal.setLength(downloader.getLength());
+                journal.commit(downloader.getContiguousLength());
+            }
+            throw e;
+        } finally {
+            if (!verified) {
+                checker.cancel();
+            }
+        }
+    }
+
+    /**
+     * Fetch the file with a single request, resuming at {@code offset}, or
+     * revalidate {@code cached} if it is given.
+     *
+     * @return the number of bytes received, or -1 if the server answered
+     *         that {@code cached} is still current.
+     */
+    private long downloadResumable(Deadline deadline, MarketResponse res, File part, DownloadJournal journal, long offset,
+            ProgressReporter progress, ApkCache.Entry cached) throws IOException {
+        final String urlstr = res.getDownloadUrl();
+        final String marketDa = res.getMarketDa();
+        final HttpRequest request = HttpRequest.get(urlstr);
+        request.addHeader("User-Agent", "Android-Market/2");
+        request.addHeader("Cookie", "MarketDA=" + marketDa);
+        if (offset > 0) {
+            request.addHeader("Range", "bytes=" + offset + "-");
+            final String validator = journal.getValidator();
+            if (validator != null) {
+                request.addHeader("If-Range", validator);
+            }
+        } else if (cached != null) {
+            if (cached.etag != null) {
+                request.addHeader("If-None-Match", cached.etag);
+            }
+            if (cached.lastModified != null) {
+                request.addHeader("If-Modified-Since", cached.lastModified);
+            }
+        }
+
+        final long start = System.nanoTime();
+        final HttpTransport.Response response = mTransport.execute(prepare(deadline, request));
+        final long headers = System.nanoTime();
+        final int status = response.getStatus();
+        if (status == 304 && cached != null) {
+            response.close();
+            mMetrics.recordRequest(Metrics.PHASE_DOWNLOAD, request, start, headers, System.nanoTime());
+            progress.start(cached.size, cached.size);
+            return -1;
+        }
+        final boolean resumed = status == 206 && offset > 0 && getRangeStart(response) == offset;
+        if (!resumed && status != 200) {
+            if (offset > 0 && (status == 206 || status == 416)) {
+                // The part file does not match what the server has now; start over.
+                request.abort();
+                journal.delete();
+                part.delete();
+                return downloadResumable(deadline, res, part, journal, 0, progress, null);
+            }
+            request.abort();
+            throw HttpTransport.StatusException.from(response);
+        }
+
+        long len = response.getContentLength();
+        if (!resumed) {
+            // Server ignored the range (or there was none); this is a full response.
+            offset = 0;
+            journal.reset();
+            journal.setValidators(response.getHeader("ETag"), response.getHeader("Last-Modified"));
+            journal.setLength(len);
+        }
+        journal.setSource(urlstr, marketDa);
+        journal.commit(offset);
+
+        final long total = offset + len;
+        final ReadBuffer readBuffer = new ReadBuffer(mBufferPool);
+        final Metrics.ReadMeter meter = mMetrics.readMeter(Metrics.PHASE_DOWNLOAD);
+        IntegrityChecker checker = null;
+        DownloadSink sink = null;
+        boolean verified = false;
+        try {
+            checker = newChecker(res);
+            checker.setAbortAction(new Runnable() {
+                public void run() {
+                    request.abort();
+                }
+            });
+            if (offset > 0) {
+                // The digest has to start at byte 0; the resumed head is only
+                // on disk.
+                checker.readFrom(part, 0, offset);
+            }
+            sink = openSink(part, offset);
+            final InputStream in = response.getBody();
+            progress.start(total, offset);
+            if (len > 0) {
+                sink.preallocate(total);
+            }
+            while (len > 0) {
+                final byte[] buf = readBuffer.get();
+                final long before = System.nanoTime();
+                int rsz;
+                try {
+                    rsz = in.read(buf);
+                } catch (IOException e) {
+                    checker.check();
+                    throw e;
+                }
+                meter.read(System.nanoTime() - before, rsz);
+                if (rsz < 0) {
+                    break;
+                }
+                sink.write(buf, 0, rsz);
+                checker.update(buf, 0, rsz);
+                len -= rsz;
+                if (sink.getDurableLength() > journal.getCommitted()) {
+                    journal.commit(sink.getDurableLength());
+                }
+                progress.add(rsz);
+                readBuffer.onRead(rsz);
+            }
+            if (len != 0) {
+                throw new IOException("Insufficient Response");
+            }
+            checker.finish();
+            verified = true;
+        } finally {
+            if (!verified && checker != null) {
+                checker.cancel();
+            }
+            readBuffer.release();
+            if (sink != null) {
+                // Whatever made it to disk is kept for the next attempt.
+                sink.close();
+                journal.commit(sink.getDurableLength());
+            }
+            response.close();
+            mMetrics.recordRequest(Metrics.PHASE_DOWNLOAD, request, start, headers, System.nanoTime());
+        }
+        return total - offset;
+    }
+
+    /**
+     * @return the number of bytes which can still be written to
+     *         {@code dir}'s volume.  Android before 2.3 has no
+     *         {@link File#getUsableSpace()}; the Activity overrides this.
+     */
+    protected long getAvailableBytes(File dir) {
+        return dir.getUsableSpace();
+    }
+
+    private DownloadSink openSink(File file, long position) throws IOException {
+        return new DownloadSink(file, position, getAvailableBytes(file.getParentFile()), SYNC_POLICY,
+                SYNC_INTERVAL, DownloadSink.DEFAULT_BUFFER_SIZE, true);
+    }
+
+    /** Close {@code in}, which is only being abandoned, and ignore any error. */
+    private static void closeQuietly(InputStream in) {
+        try {
+            in.close();
+        } catch (IOException e) {
+            // already aborted
+        }
+    }
+
+    private static long getRangeStart(HttpTransport.Response response) {
+        final long[] range = SegmentedDownloader.parseContentRange(response.getHeader("Content-Range"));
+        return range != null ? range[0] : -1;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2012 Tatsuo Nagamatsu <nagamatu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gmail.nagamatu.radiko.installer;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * What every screen of the process needs before it can talk to the
+ * Market, set up once and shared: the HTTP transports and the device ID.
+ *
+ * <p>Both are slow to get (a KeyStore load and TLS setup, a GServices
+ * query), so they are made on a background thread, starting with the
+ * first call to {@link #prepare}, and handed out as {@link Future}s; an
+ * activity kicks them off in onCreate and waits for them only when it
+ * actually has a request to send.
+ */
+final class InstallerRuntime {
+    private static final Uri URI_GSERVICES = Uri.parse("content://com.google.android.gsf.gservices");
+
+    private static InstallerRuntime sInstance;
+
+    private final Context mContext;
+    private final ExecutorService mExecutor;
+    private final Map<String, Future<HttpTransport>> mTransports = new HashMap<String, Future<HttpTransport>>();
+    private Future<String> mDeviceId;
+
+    private InstallerRuntime(Context context) {
+        mContext = context;
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, "InstallerRuntime");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public static synchronized InstallerRuntime get(Context context) {
+        if (sInstance == null) {
+            sInstance = new InstallerRuntime(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Start getting everything an engine on {@code engine} will need, if
+     * not already done or underway.  Returns at once.
+     *
+     * @param engine one of the HttpTransports constants, or null for the
+     *        default
+     */
+    public void prepare(String engine) {
+        getDeviceId();
+        getTransport(engine);
+    }
+
+    /**
+     * @return the transport for {@code engine}, shared by the whole process;
+     *         not to be shut down by its users.
+     */
+    public synchronized Future<HttpTransport> getTransport(final String engine) {
+        final String key = engine == null ? HttpTransports.APACHE : engine;
+        Future<HttpTransport> transport = mTransports.get(key);
+        if (transport == null) {
+            transport = mExecutor.submit(new Callable<HttpTransport>() {
+                public HttpTransport call() throws IOException {
+                    return HttpTransports.create(key, InstallerEngine.DEFAULT_SEGMENTS, TransportProfile.BULK);
+                }
+            });
+            mTransports.put(key, transport);
+        }
+        return transport;
+    }
+
+    /** @return the Android ID as hex, or null if GServices does not know it. */
+    public synchronized Future<String> getDeviceId() {
+        if (mDeviceId == null) {
+            mDeviceId = mExecutor.submit(new Callable<String>() {
+                public String call() {
+                    return queryDeviceId(mContext);
+                }
+            });
+        }
+        return mDeviceId;
+    }
+
+    /**
+     * Wait for {@code future}.
+     *
+     * @throws IOException if getting the value failed, or the wait was
+     *         interrupted.
+     */
+    public static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new InstallerEngine.CancelledException("startup");
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            throw new IOException(cause.toString());
+        }
+    }
+
+    private static String queryDeviceId(Context context) {
+        String id = null;
+        Cursor c = context.getContentResolver().query(URI_GSERVICES, null, null, new String[] {"android_id" }, null);
+        try {
+            c.moveToFirst();
+            id = Long.toHexString(Long.parseLong(c.getString(1)));
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+        return id;
+    }
+}
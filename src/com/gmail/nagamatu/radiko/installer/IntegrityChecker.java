@@ -0,0 +1,383 @@
+/*
+ * Copyright (C) 2012 Tatsuo Nagamatsu <nagamatu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.nagamatu.radiko.installer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Verifies a download while it is being written: SHA-1 and SHA-256 of the
+ * bytes and the ZIP structure ({@link ZipStreamValidator}) are computed on
+ * a thread of their own, so the read loop only pays for a copy into a
+ * pooled chunk.
+ *
+ * <p>The bytes must be seen in file order.  A single stream hands them over
+ * with {@link #update}; bytes which are already on disk (a resumed prefix)
+ * or which arrive out of order (a segmented download) are read back with
+ * {@link #readFrom} and {@link #follow} while they are still in the page
+ * cache, never in a second pass after the download.
+ *
+ * <p>A corrupt ZIP is noticed as soon as its bytes have been checked: the
+ * abort action runs and the next {@link #update} or {@link #check} throws.
+ */
+class IntegrityChecker implements Runnable {
+    /** Thrown when the data is not the expected APK. */
+    static class CorruptException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        CorruptException(String message) {
+            super(message);
+        }
+    }
+
+    /** The writer of a file whose gap-free head grows over time. */
+    interface Source {
+        /** @return the final length, or -1 while it is not known yet. */
+        long getLength();
+
+        /** @return the number of bytes from offset 0 known to be written. */
+        long getAvailable();
+    }
+
+    private static final int CHUNK_SIZE = 32 * 1024;
+    private static final int CHUNKS = 8;
+    private static final long FOLLOW_POLL_MILLIS = 10;
+
+    /** A unit of work for the checker thread, taken in order. */
+    private static class Work {
+        byte[] buf;
+        int len;
+        File file;
+        long from;
+        long to;
+        Source source;
+        boolean end;
+    }
+
+    private final long mExpectedSize;
+    private final String mExpectedDigest;
+    private final MessageDigest mSha1;
+    private final MessageDigest mSha256;
+    private final ZipStreamValidator mZip = new ZipStreamValidator();
+
+    private final BlockingQueue<Work> mQueue = new ArrayBlockingQueue<Work>(CHUNKS + 4);
+    private final BlockingQueue<byte[]> mFree = new ArrayBlockingQueue<byte[]>(CHUNKS);
+    private final Thread mThread;
+
+    private byte[] mChunk;
+    private int mChunkLen;
+    private long mChecked;
+    private byte[] mSha1Result;
+    private byte[] mSha256Result;
+
+    private volatile IOException mError;
+    private volatile boolean mFinishing;
+    private volatile boolean mCancelled;
+    private volatile Runnable mAbortAction;
+
+    /**
+     * @param expectedSize   the size the file must have, or -1
+     * @param expectedDigest its SHA-1 or SHA-256 in hex or Base64, or null;
+     *        one in any other format is not checked, see
+     *        {@link #parseDigest}
+     */
+    public IntegrityChecker(long expectedSize, String expectedDigest) {
+        mExpectedSize = expectedSize;
+        mExpectedDigest = expectedDigest;
+        try {
+            mSha1 = MessageDigest.getInstance("SHA-1");
+            mSha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e.toString());
+        }
+        for (int i = 0; i < CHUNKS; i++) {
+            mFree.add(new byte[CHUNK_SIZE]);
+        }
+        mThread = new Thread(this, "IntegrityChecker");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /** Run {@code action} (e.g. abort the transfer) when corruption is found. */
+    public void setAbortAction(Runnable action) {
+        mAbortAction = action;
+        if (mError != null && action != null) {
+            action.run();
+        }
+    }
+
+    /** Check the next {@code len} bytes of the file. */
+    public void update(byte[] buf, int off, int len) throws IOException {
+        check();
+        while (len > 0) {
+            if (mChunk == null) {
+                mChunk = take(mFree);
+                mChunkLen = 0;
+            }
+            final int n = Math.min(len, mChunk.length - mChunkLen);
+            System.arraycopy(buf, off, mChunk, mChunkLen, n);
+            mChunkLen += n;
+            off += n;
+            len -= n;
+            if (mChunkLen == mChunk.length) {
+                flushChunk();
+            }
+        }
+    }
+
+    /** Check bytes {@code [from, to)} of {@code file}, which are already written. */
+    public void readFrom(File file, long from, long to) throws IOException {
+        flushChunk();
+        final Work w = new Work();
+        w.file = file;
+        w.from = from;
+        w.to = to;
+        put(w);
+    }
+
+    /**
+     * Check {@code file} from {@code from} on as {@code source} writes it,
+     * until its length is reached or {@link #finish} is called.
+     */
+    public void follow(File file, long from, Source source) throws IOException {
+        flushChunk();
+        final Work w = new Work();
+        w.file = file;
+        w.from = from;
+        w.source = source;
+        put(w);
+    }
+
+    /** @throws CorruptException if the data seen so far is already wrong. */
+    public void check() throws IOException {
+        final IOException e = mError;
+        if (e != null) {
+            throw e;
+        }
+    }
+
+    /** @return the failure found so far, or null. */
+    public IOException getError() {
+        return mError;
+    }
+
+    /**
+     * Wait for every byte handed over to be checked, then compare the size
+     * and digest with the expected ones and make sure the ZIP is complete.
+     */
+    public void finish() throws IOException {
+        flushChunk();
+        mFinishing = true;
+        final Work end = new Work();
+        end.end = true;
+        put(end);
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            cancel();
+            throw new InterruptedIOException("Interrupted while verifying");
+        }
+        check();
+
+        if (mExpectedSize >= 0 && mChecked != mExpectedSize) {
+            throw new CorruptException("Size mismatch: got " + mChecked + " bytes, expected " + mExpectedSize);
+        }
+        try {
+            mZip.finish();
+        } catch (IOException e) {
+            throw new CorruptException(e.getMessage());
+        }
+        if (mExpectedDigest != null) {
+            final byte[] expected = parseDigest(mExpectedDigest);
+            final byte[] actual = expected == null ? null
+                    : expected.length == mSha1Result.length ? mSha1Result
+                    : expected.length == mSha256Result.length ? mSha256Result : null;
+            if (actual != null && !Arrays.equals(expected, actual)) {
+                throw new CorruptException("Digest mismatch: got " + toHex(actual) + ", expected " + toHex(expected));
+            }
+        }
+    }
+
+    /** Stop checking; nothing is reported. */
+    public void cancel() {
+        mCancelled = true;
+        mThread.interrupt();
+    }
+
+    /** @return the SHA-1 of the file, once {@link #finish} has returned. */
+    public byte[] getSha1() {
+        return mSha1Result;
+    }
+
+    /** @return the SHA-256 of the file, once {@link #finish} has returned. */
+    public byte[] getSha256() {
+        return mSha256Result;
+    }
+
+    private void flushChunk() throws IOException {
+        if (mChunk == null) {
+            return;
+        }
+        final Work w = new Work();
+        w.buf = mChunk;
+        w.len = mChunkLen;
+        mChunk = null;
+        put(w);
+    }
+
+    private void put(Work w) throws IOException {
+        try {
+            mQueue.put(w);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while verifying");
+        }
+    }
+
+    private static <T> T take(BlockingQueue<T> queue) throws IOException {
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while verifying");
+        }
+    }
+
+    public void run() {
+        try {
+            while (!mCancelled) {
+                final Work w = mQueue.take();
+                if (w.end) {
+                    break;
+                }
+                if (w.buf != null) {
+                    if (mError == null) {
+                        process(w.buf, 0, w.len);
+                    }
+                    mFree.put(w.buf);
+                } else if (mError == null) {
+                    try {
+                        readFile(w);
+                    } catch (IOException e) {
+                        // Keep taking work so that no producer is left
+                        // waiting for a chunk; they see the error instead.
+                        fail(e);
+                    }
+                }
+            }
+            mSha1Result = mSha1.digest();
+            mSha256Result = mSha256.digest();
+        } catch (InterruptedException e) {
+            // cancelled
+        }
+    }
+
+    private void readFile(Work w) throws IOException, InterruptedException {
+        final RandomAccessFile raf = new RandomAccessFile(w.file, "r");
+        final byte[] buf = BufferPool.getDefault().acquire(CHUNK_SIZE);
+        try {
+            long pos = w.from;
+            while (!mCancelled && mError == null) {
+                long limit = w.to;
+                if (w.source != null) {
+                    final long length = w.source.getLength();
+                    if (length >= 0 && pos >= length) {
+                        break;
+                    }
+                    limit = w.source.getAvailable();
+                    if (limit <= pos) {
+                        if (mFinishing) {
+                            break;
+                        }
+                        Thread.sleep(FOLLOW_POLL_MILLIS);
+                        continue;
+                    }
+                } else if (pos >= limit) {
+                    break;
+                }
+                raf.seek(pos);
+                final int n = raf.read(buf, 0, (int)Math.min(buf.length, limit - pos));
+                if (n < 0) {
+                    break;
+                }
+                process(buf, 0, n);
+                pos += n;
+            }
+        } finally {
+            raf.close();
+            BufferPool.getDefault().release(buf);
+        }
+    }
+
+    private void process(byte[] buf, int off, int len) {
+        mSha1.update(buf, off, len);
+        mSha256.update(buf, off, len);
+        mChecked += len;
+        try {
+            mZip.update(buf, off, len);
+        } catch (IOException e) {
+            fail(new CorruptException(e.getMessage()));
+        }
+    }
+
+    private void fail(IOException e) {
+        if (mError != null || mCancelled) {
+            return;
+        }
+        mError = e;
+        final Runnable action = mAbortAction;
+        if (action != null) {
+            action.run();
+        }
+    }
+
+    /**
+     * Decode an expected digest sent as hex or (web safe) Base64.
+     *
+     * @return the digest bytes, or null if the format is not recognized.
+     */
+    static byte[] parseDigest(String s) {
+        s = s.trim();
+        if ((s.length() == 40 || s.length() == 64) && s.matches("[0-9a-fA-F]+")) {
+            final byte[] out = new byte[s.length() / 2];
+            for (int i = 0; i < out.length; i++) {
+                out[i] = (byte)Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+            }
+            return out;
+        }
+        try {
+            final int flags = s.indexOf('-') >= 0 || s.indexOf('_') >= 0 ? Base64.URL_SAFE : Base64.DEFAULT;
+            final byte[] out = Base64.decode(s, flags);
+            return out.length == 20 || out.length == 32 ? out : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static String toHex(byte[] b) {
+        final StringBuilder sb = new StringBuilder(b.length * 2);
+        for (int i = 0; i < b.length; i++) {
+            sb.append(Character.forDigit((b[i] >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b[i] & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
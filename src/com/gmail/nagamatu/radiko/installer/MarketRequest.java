@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2012 Tatsuo Nagamatsu <nagamatu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gmail.nagamatu.radiko.installer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Builds the protobuf body of a Market ApiRequest.
+ *
+ * <p>An instance is a template for one {@link DeviceProfile}: the
+ * RequestContext fields after the auth token are serialized once, and each
+ * request only encodes the token and the package name around them, into a
+ * buffer of exactly the right size.
+ * <pre>
+ *   Request {
+ *     RequestContext context = 1 { string authSubToken = 1; ... }
+ *     group RequestGroup = 2 {
+ *       GetAssetRequest getAssetRequest = 10 { string assetId = 1; }
+ *     }
+ *   }
+ * </pre>
+ */
+final class MarketRequest {
+    private static final int FIELD_CONTEXT = 1;
+    private static final int FIELD_GROUP = 2;
+    private static final int FIELD_ASSET_REQUEST = 10;
+    private static final int FIELD_ASSET_ID = 1;
+
+    // RequestContext
+    private static final int FIELD_AUTH = 1;
+    private static final int FIELD_IS_SECURE = 2;
+    private static final int FIELD_SDK_VERSION = 3;
+    private static final int FIELD_DEVICE_ID = 4;
+    private static final int FIELD_DEVICE_AND_SDK_VERSION = 5;
+    private static final int FIELD_USER_LANGUAGE = 6;
+    private static final int FIELD_USER_COUNTRY = 7;
+    private static final int FIELD_OPERATOR_ALPHA = 8;
+    private static final int FIELD_SIM_OPERATOR_ALPHA = 9;
+    private static final int FIELD_OPERATOR_NUMERIC = 10;
+    private static final int FIELD_SIM_OPERATOR_NUMERIC = 11;
+
+    /** Templates kept for the most recently used profiles. */
+    private static final int MAX_TEMPLATES = 16;
+
+    /** In access order, so the least recently used template is dropped. */
+    private static final Map<DeviceProfile, MarketRequest> sTemplates =
+            new LinkedHashMap<DeviceProfile, MarketRequest>(MAX_TEMPLATES, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<DeviceProfile, MarketRequest> eldest) {
+                    return size() > MAX_TEMPLATES;
+                }
+            };
+
+    private final byte[] mContextTail;
+
+    private MarketRequest(DeviceProfile profile) {
+        mContextTail = compileContextTail(profile);
+    }
+
+    /**
+     * Build the GetAssetRequest for {@code packageName}, signed in with
+     * {@code auth} from the device {@code deviceId}.
+     */
+    public static byte[] create(String auth, String deviceId, String packageName) {
+        return forProfile(DeviceProfile.forDevice(deviceId)).build(auth, packageName);
+    }
+
+    /** @return the (shared) template for requests sent as {@code profile}. */
+    public static MarketRequest forProfile(DeviceProfile profile) {
+        synchronized (sTemplates) {
+            MarketRequest template = sTemplates.get(profile);
+            if (template == null) {
+                template = new MarketRequest(profile);
+                sTemplates.put(profile, template);
+            }
+            return template;
+        }
+    }
+
+    /**
+     * Build the GetAssetRequest for {@code packageName}, signed in with
+     * {@code auth}.  Only the token and the package name are encoded here;
+     * everything else is copied from the precompiled profile.
+     */
+    public byte[] build(String auth, String packageName) {
+        final int authLen = ProtoWriter.computeUtf8Size(auth);
+        final int contextLen = ProtoWriter.computeMessageSize(FIELD_AUTH, authLen) + mContextTail.length;
+        final int nameLen = ProtoWriter.computeUtf8Size(packageName);
+        final int assetLen = ProtoWriter.computeMessageSize(FIELD_ASSET_ID, nameLen);
+        final int groupLen = 2 * ProtoWriter.computeTagSize(FIELD_GROUP)
+                + ProtoWriter.computeMessageSize(FIELD_ASSET_REQUEST, assetLen);
+        final int len = ProtoWriter.computeMessageSize(FIELD_CONTEXT, contextLen) + groupLen;
+
+        final ProtoWriter out = new ProtoWriter(new byte[len]);
+        out.writeMessageHeader(FIELD_CONTEXT, contextLen);
+        out.writeMessageHeader(FIELD_AUTH, authLen);
+        out.writeRawUtf8(auth);
+        out.writeRawBytes(mContextTail, 0, mContextTail.length);
+        out.writeStartGroup(FIELD_GROUP);
+        out.writeMessageHeader(FIELD_ASSET_REQUEST, assetLen);
+        out.writeMessageHeader(FIELD_ASSET_ID, nameLen);
+        out.writeRawUtf8(packageName);
+        out.writeEndGroup(FIELD_GROUP);
+        return out.toByteArray();
+    }
+
+    /** Serialize the RequestContext fields following the auth token. */
+    private static byte[] compileContextTail(DeviceProfile p) {
+        final ProtoWriter out = new ProtoWriter(256);
+        out.writeInt32(FIELD_IS_SECURE, 1);
+        out.writeInt32(FIELD_SDK_VERSION, p.sdkVersion);
+        out.writeString(FIELD_DEVICE_ID, p.deviceId);
+        out.writeString(FIELD_DEVICE_AND_SDK_VERSION, p.deviceAndSdkVersion);
+        out.writeString(FIELD_USER_LANGUAGE, p.userLanguage);
+        out.writeString(FIELD_USER_COUNTRY, p.userCountry);
+        out.writeString(FIELD_OPERATOR_ALPHA, p.operatorAlpha);
+        out.writeString(FIELD_SIM_OPERATOR_ALPHA, p.simOperatorAlpha);
+        out.writeString(FIELD_OPERATOR_NUMERIC, p.operatorNumeric);
+        out.writeString(FIELD_SIM_OPERATOR_NUMERIC, p.simOperatorNumeric);
+        return out.toByteArray();
+    }
+}
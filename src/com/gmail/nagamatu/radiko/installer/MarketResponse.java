@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2012 Tatsuo Nagamatsu <nagamatu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gmail.nagamatu.radiko.installer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The parts of a Market ApiRequest response needed to fetch an asset.
+ *
+ * <p>The response is decoded straight off the stream.  It looks like
+ * <pre>
+ *   Response {
+ *     group ResponseGroup = 1 {
+ *       ResponseContext context = 2;
+ *       GetAssetResponse getAssetResponse = ...;
+ *     }
+ *   }
+ *   GetAssetResponse {
+ *     group InstallAsset = 1 {
+ *       string blobUrl = 6;
+ *       string assetSignature = 7;
+ *       uint64 assetSize = 8;
+ *       int32 versionCode = 12;
+ *       string downloadAuthCookieName = 13;
+ *       string downloadAuthCookieValue = 14;
+ *       ...
+ *     }
+ *   }
+ * </pre>
+ * Groups are always entered, length-delimited members of a ResponseGroup
+ * are entered as messages, and any other string is recognized by its
+ * contents, so the exact numbering of the response members does not
+ * matter.  Decoding stops as soon as both the URL and the cookie are known.
+ */
+class MarketResponse {
+    private static final String COOKIE_MARKETDA = "MarketDA";
+
+    private static final int FIELD_RESPONSE_GROUP = 1;
+    private static final int FIELD_ASSET_SIGNATURE = 7;
+    private static final int FIELD_ASSET_SIZE = 8;
+    private static final int FIELD_VERSION_CODE = 12;
+    private static final int FIELD_COOKIE_NAME = 13;
+    private static final int FIELD_COOKIE_VALUE = 14;
+
+    /** Strings longer than this cannot be anything we are looking for. */
+    private static final int MAX_STRING = 4096;
+
+    private String mDownloadUrl;
+    private String mCookieName;
+    private String mMarketDa;
+    private String mSignature;
+    private long mSize = -1;
+    private int mVersionCode = -1;
+
+    private ProtoReader mReader;
+
+    private MarketResponse() {
+    }
+
+    /**
+     * Decode a (gunzipped) ApiRequest response.  Reading stops as soon as
+     * the download URL and the MarketDA cookie have been seen, so the rest
+     * of {@code in} may be left unread.
+     */
+    public static MarketResponse parse(InputStream in) throws IOException {
+        final MarketResponse res = new MarketResponse();
+        final byte[] buf = BufferPool.getDefault().acquire(MAX_STRING);
+        try {
+            res.mReader = new ProtoReader(in, buf);
+            res.parseMessage(0, false, false);
+        } finally {
+            res.mReader = null;
+            BufferPool.getDefault().release(buf);
+        }
+        return res;
+    }
+
+    public boolean isComplete() {
+        return mDownloadUrl != null && mMarketDa != null;
+    }
+
+    public String getDownloadUrl() {
+        return mDownloadUrl;
+    }
+
+    public String getCookieName() {
+        return mCookieName;
+    }
+
+    public String getMarketDa() {
+        return mMarketDa;
+    }
+
+    /**
+     * @return the digest of the asset as sent by the Market (SHA-1, usually
+     *         Base64), or null if not sent.
+     */
+    public String getSignature() {
+        return mSignature;
+    }
+
+    /** @return the asset size in bytes, or -1 if not sent. */
+    public long getSize() {
+        return mSize;
+    }
+
+    /** @return the version code of the asset, or -1 if not sent. */
+    public int getVersionCode() {
+        return mVersionCode;
+    }
+
+    /**
+     * Walk fields until the end of the input, the current limit or the
+     * enclosing group.
+     *
+     * @param depth 0 for the top level, 1 inside a ResponseGroup, ...
+     * @param inAsset true inside a group below the ResponseGroup level,
+     *        where the numeric asset fields are interpreted.
+     * @param inGroup true if an end group is expected before the end.
+     * @return true if decoding can stop.
+     */
+    private boolean parseMessage(int depth, boolean inAsset, boolean inGroup) throws IOException {
+        final ProtoReader r = mReader;
+        int tag;
+        while ((tag = r.readTag()) != 0) {
+            final int field = WireFormat.getTagFieldNumber(tag);
+
+            switch (WireFormat.getTagWireType(tag)) {
+                case WireFormat.WIRETYPE_VARINT:
+                    final long value = r.readInt64();
+                    if (inAsset) {
+                        if (field == FIELD_ASSET_SIZE) {
+                            mSize = value;
+                        } else if (field == FIELD_VERSION_CODE) {
+                            mVersionCode = (int)value;
+                        }
+                    }
+                    break;
+                case WireFormat.WIRETYPE_LENGTH_DELIMITED:
+                    final int len = r.readRawVarint32();
+                    if (depth == 1) {
+                        final int limit = r.pushLimit(len);
+                        final boolean done = parseMessage(depth + 1, false, false);
+                        r.popLimit(limit);
+                        if (done) {
+                            return true;
+                        }
+                    } else if (len <= MAX_STRING) {
+                        onString(field, r.readRawString(len), inAsset);
+                    } else {
+                        r.skipRawBytes(len);
+                    }
+                    break;
+                case WireFormat.WIRETYPE_START_GROUP:
+                    final boolean asset = depth >= 2 || (depth == 1 && field != FIELD_RESPONSE_GROUP);
+                    if (parseMessage(depth + 1, asset, true)) {
+                        return true;
+                    }
+                    break;
+                case WireFormat.WIRETYPE_END_GROUP:
+                    return false;
+                default:
+                    r.skipField(tag);
+                    break;
+            }
+            if (isComplete()) {
+                return true;
+            }
+        }
+        if (inGroup) {
+            throw new EOFException("Truncated response");
+        }
+        return false;
+    }
+
+    private void onString(int field, String s, boolean inAsset) {
+        if (mDownloadUrl == null && (s.startsWith("http://") || s.startsWith("https://"))) {
+            mDownloadUrl = s;
+        } else if (inAsset && field == FIELD_ASSET_SIGNATURE && mSignature == null) {
+            mSignature = s;
+        } else if (field == FIELD_COOKIE_NAME || COOKIE_MARKETDA.equals(s)) {
+            mCookieName = s;
+        } else if (mMarketDa == null && (field == FIELD_COOKIE_VALUE || mCookieName != null)) {
+            mMarketDa = s;
+        }
+    }
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright (C) 2012 Tatsuo Nagamatsu <nagamatu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.nagamatu.radiko.installer;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Named counters and latency histograms for one or more runs of the
+ * engine.
+ *
+ * <p>Requests are recorded per phase ("login", "api", "download") as
+ * {@code <phase>.dns}, {@code .connect}, {@code .tls}, {@code .ttfb} and
+ * {@code .total}, in microseconds; the connection phases only when the
+ * request opened a new connection.  Download loops add
+ * {@code download.bytes}, {@code download.read} (time blocked per read),
+ * {@code download.readsize} (bytes per read) and
+ * {@code download.stalls}, and {@code download.rate} has the bytes per
+ * second of each completed download.  Counters are striped by thread and
+ * histograms are lock free, so recording from the read loop costs a few
+ * atomic adds.  {@link #snapshot()} takes a consistent enough copy which
+ * can be turned into JSON.
+ */
+class Metrics {
+    public static final String PHASE_LOGIN = "login";
+    public static final String PHASE_API = "api";
+    public static final String PHASE_DOWNLOAD = "download";
+
+    /** A read blocked for longer than this counts as a stall. */
+    static final long STALL_NANOS = 500 * 1000 * 1000L;
+
+    private static final int STRIPES = 8;
+    /** Longs per stripe, so that stripes do not share a cache line. */
+    private static final int PAD = 8;
+
+    private final ConcurrentMap<String, Counter> mCounters = new ConcurrentHashMap<String, Counter>();
+    private final ConcurrentMap<String, Histogram> mHistograms = new ConcurrentHashMap<String, Histogram>();
+    private final long mCreated = System.currentTimeMillis();
+
+    private static int stripe() {
+        return (int)(Thread.currentThread().getId() & (STRIPES - 1)) * PAD;
+    }
+
+    /** A counter which many threads can add to without contending. */
+    static final class Counter {
+        private final AtomicLongArray mCells = new AtomicLongArray(STRIPES * PAD);
+
+        public void add(long n) {
+            mCells.addAndGet(stripe(), n);
+        }
+
+        public void increment() {
+            add(1);
+        }
+
+        public long get() {
+            long sum = 0;
+            for (int i = 0; i < STRIPES; i++) {
+                sum += mCells.get(i * PAD);
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * Log-linear histogram of non-negative values: exact below 16, then 8
+     * buckets per power of two, i.e. within 12.5%.
+     */
+    static final class Histogram {
+        private static final int LINEAR = 16;
+        private static final int SUB_BITS = 3;
+        private static final int SUB = 1 << SUB_BITS;
+        private static final int BUCKETS = LINEAR + (63 - 4) * SUB;
+
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+        private final Counter mCount = new Counter();
+        private final Counter mSum = new Counter();
+        private final AtomicLong mMax = new AtomicLong();
+
+        public void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            mBuckets.incrementAndGet(bucket(value));
+            mCount.increment();
+            mSum.add(value);
+            long max;
+            while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value)) {
+            }
+        }
+
+        static int bucket(long value) {
+            if (value < LINEAR) {
+                return (int)value;
+            }
+            final int exp = 63 - Long.numberOfLeadingZeros(value);
+            final int sub = (int)(value >>> (exp - SUB_BITS)) & (SUB - 1);
+            return LINEAR + (exp - 4) * SUB + sub;
+        }
+
+        /** @return the largest value that falls into {@code bucket}. */
+        static long upperBound(int bucket) {
+            if (bucket < LINEAR) {
+                return bucket;
+            }
+            final int exp = (bucket - LINEAR) / SUB + 4;
+            final long sub = (bucket - LINEAR) % SUB;
+            return ((SUB + sub + 1) << (exp - SUB_BITS)) - 1;
+        }
+
+        HistogramSnapshot snapshot() {
+            final long[] buckets = new long[BUCKETS];
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = mBuckets.get(i);
+                count += buckets[i];
+            }
+            return new HistogramSnapshot(buckets, count, mSum.get(), mMax.get());
+        }
+    }
+
+    /** Frozen state of a {@link Histogram}. */
+    static final class HistogramSnapshot {
+        public final long count;
+        public final long sum;
+        public final long max;
+        private final long[] mBuckets;
+
+        HistogramSnapshot(long[] buckets, long count, long sum, long max) {
+            mBuckets = buckets;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public double mean() {
+            return count == 0 ? 0 : (double)sum / count;
+        }
+
+        /**
+         * @param p between 0 and 100
+         * @return the value at or below which {@code p} percent of the
+         *         recorded values fall, to the histogram's precision.
+         */
+        public long percentile(double p) {
+            if (count == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long)Math.ceil(p / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < mBuckets.length; i++) {
+                seen += mBuckets[i];
+                if (seen >= rank) {
+                    return Math.min(Histogram.upperBound(i), max);
+                }
+            }
+            return max;
+        }
+    }
+
+    /** Everything recorded up to one point in time. */
+    static final class Snapshot {
+        public final long startedMillis;
+        public final long takenMillis;
+        public final Map<String, Long> counters;
+        public final Map<String, HistogramSnapshot> histograms;
+
+        Snapshot(long started, long taken, Map<String, Long> counters, Map<String, HistogramSnapshot> histograms) {
+            startedMillis = started;
+            takenMillis = taken;
+            this.counters = counters;
+            this.histograms = histograms;
+        }
+
+        public long getCounter(String name) {
+            final Long value = counters.get(name);
+            return value != null ? value : 0;
+        }
+
+        /**
+         * <pre>
+         *   {"started":..., "taken":...,
+         *    "counters": {"download.bytes": 123, ...},
+         *    "histograms": {"login.total": {"count":1, "mean":..., "p50":...,
+         *                   "p95":..., "p99":..., "max":...}, ...}}
+         * </pre>
+         */
+        public String toJson() {
+            final StringBuilder sb = new StringBuilder();
+            sb.append("{\"started\":").append(startedMillis);
+            sb.append(",\"taken\":").append(takenMillis);
+            sb.append(",\"counters\":{");
+            for (Iterator<Map.Entry<String, Long>> it = counters.entrySet().iterator(); it.hasNext(); ) {
+                final Map.Entry<String, Long> e = it.next();
+                appendString(sb, e.getKey()).append(':').append(e.getValue());
+                if (it.hasNext()) {
+                    sb.append(',');
+                }
+            }
+            sb.append("},\"histograms\":{");
+            for (Iterator<Map.Entry<String, HistogramSnapshot>> it = histograms.entrySet().iterator(); it.hasNext(); ) {
+                final Map.Entry<String, HistogramSnapshot> e = it.next();
+                final HistogramSnapshot h = e.getValue();
+                appendString(sb, e.getKey());
+                sb.append(":{\"count\":").append(h.count);
+                sb.append(",\"mean\":").append(Math.round(h.mean()));
+                sb.append(",\"p50\":").append(h.percentile(50));
+                sb.append(",\"p95\":").append(h.percentile(95));
+                sb.append(",\"p99\":").append(h.percentile(99));
+                sb.append(",\"max\":").append(h.max).append('}');
+                if (it.hasNext()) {
+                    sb.append(',');
+                }
+            }
+            return sb.append("}}").toString();
+        }
+
+        private static StringBuilder appendString(StringBuilder sb, String s) {
+            sb.append('"');
+            for (int i = 0; i < s.length(); i++) {
+                final char c = s.charAt(i);
+                if (c == '"' || c == '\\') {
+                    sb.append('\\').append(c);
+                } else if (c < 0x20) {
+                    sb.append(String.format("\\u%04x", (int)c));
+                } else {
+                    sb.append(c);
+                }
+            }
+            return sb.append('"');
+        }
+    }
+
+    /**
+     * Bookkeeping for one download loop: bytes, time blocked per read and
+     * stalls.  Obtain it once per loop; {@link #read} is cheap.
+     */
+    static final class ReadMeter {
+        private final Counter mBytes;
+        private final Counter mStalls;
+        private final Histogram mWait;
+        private final Histogram mSize;
+
+        ReadMeter(Metrics metrics, String phase) {
+            mBytes = metrics.counter(phase + ".bytes");
+            mStalls = metrics.counter(phase + ".stalls");
+            mWait = metrics.histogram(phase + ".read");
+            mSize = metrics.histogram(phase + ".readsize");
+        }
+
+        /** Record a read of {@code bytes} which blocked for {@code nanos}. */
+        public void read(long nanos, int bytes) {
+            if (bytes > 0) {
+                mBytes.add(bytes);
+                mSize.record(bytes);
+            }
+            mWait.record(nanos / 1000);
+            if (nanos > STALL_NANOS) {
+                mStalls.increment();
+            }
+        }
+    }
+
+    public Counter counter(String name) {
+        Counter counter = mCounters.get(name);
+        if (counter == null) {
+            final Counter created = new Counter();
+            counter = mCounters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    public Histogram histogram(String name) {
+        Histogram histogram = mHistograms.get(name);
+        if (histogram == null) {
+            final Histogram created = new Histogram();
+            histogram = mHistograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    public ReadMeter readMeter(String phase) {
+        return new ReadMeter(this, phase);
+    }
+
+    /**
+     * Record one request of {@code phase}.
+     *
+     * @param start   when it was handed to the transport
+     * @param headers when the response headers were in
+     * @param end     when the body was done with
+     */
+    public void recordRequest(String phase, HttpRequest request, long start, long headers, long end) {
+        final RequestTiming timing = request.getTiming();
+        record(phase + ".dns", timing.dnsNanos);
+        record(phase + ".connect", timing.connectNanos);
+        record(phase + ".tls", timing.tlsNanos);
+        record(phase + ".ttfb", headers - start);
+        record(phase + ".total", end - start);
+        counter(phase + ".requests").increment();
+        if (timing.isNewConnection()) {
+            counter(phase + ".connections").increment();
+        }
+    }
+
+    private void record(String name, long nanos) {
+        if (nanos >= 0) {
+            histogram(name).record(nanos / 1000);
+        }
+    }
+
+    /** Record the throughput of one transfer of {@code phase}, in bytes per second. */
+    public void recordRate(String phase, long bytes, long nanos) {
+        if (bytes > 0 && nanos > 0) {
+            histogram(phase + ".rate").record(bytes * 1000000000L / nanos);
+        }
+    }
+
+    /** Count a failure of {@code phase}, by phase and by kind. */
+    public void recordError(String phase, Throwable e) {
+        counter(phase + ".errors").increment();
+        counter("errors." + e.getClass().getSimpleName()).increment();
+        if (e instanceof InstallerEngine.DeadlineException) {
+            counter(phase + ".deadline." + ((InstallerEngine.DeadlineException)e).getKindName()).increment();
+        }
+    }
+
+    public Snapshot snapshot() {
+        final Map<String, Long> counters = new TreeMap<String, Long>();
+        for (Map.Entry<String, Counter> e : mCounters.entrySet()) {
+            counters.put(e.getKey(), e.getValue().get());
+        }
+        final Map<String, HistogramSnapshot> histograms = new TreeMap<String, HistogramSnapshot>();
+        for (Map.Entry<String, Histogram> e : mHistograms.entrySet()) {
+            histograms.put(e.getKey(), e.getValue().snapshot());
+        }
+        return new Snapshot(mCreated, System.currentTimeMillis(), counters, histograms);
+    }
+}
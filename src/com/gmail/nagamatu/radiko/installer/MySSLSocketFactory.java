@@ -16,21 +16,33 @@
 
 package com.gmail.nagamatu.radiko.installer;
 
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
 import org.apache.http.HttpVersion;
 import org.apache.http.client.HttpClient;
 import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
 import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.scheme.SocketFactory;
 import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
 import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
 import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.ExecutionContext;
 import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
 
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.security.KeyManagementException;
@@ -42,15 +54,38 @@ import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 
 class MySSLSocketFactory extends SSLSocketFactory {
-    SSLContext sslContext = SSLContext.getInstance("TLS");
+    private static final int DEFAULT_MAX_PER_ROUTE = 2;
+    private static final int MAX_TOTAL_CONNECTIONS = 20;
 
-    public MySSLSocketFactory(KeyStore truststore) throws NoSuchAlgorithmException, KeyManagementException, KeyStoreException, UnrecoverableKeyException {
+    /** Sessions kept for resumption; a handful of hosts is all we talk to. */
+    private static final int SESSION_CACHE_SIZE = 32;
+    private static final int SESSION_TIMEOUT_SECONDS = 10 * 60;
+
+    /**
+     * One context, and so one client session cache, for the whole process:
+     * every client and every connection can resume any session.
+     */
+    private static javax.net.ssl.SSLSocketFactory sFactory;
+
+    private final javax.net.ssl.SSLSocketFactory mFactory;
+    private final TransportProfile mProfile;
+
+    public MySSLSocketFactory(KeyStore truststore, TransportProfile profile) throws NoSuchAlgorithmException, KeyManagementException, KeyStoreException, UnrecoverableKeyException {
         super(truststore);
+        mFactory = getSharedFactory();
+        mProfile = profile;
+    }
 
+    static synchronized javax.net.ssl.SSLSocketFactory getSharedFactory() throws NoSuchAlgorithmException, KeyManagementException {
+        if (sFactory != null) {
+            return sFactory;
+        }
         TrustManager tm = new X509TrustManager() {
             public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
             }
@@ -63,39 +98,181 @@ class MySSLSocketFactory extends SSLSocketFactory {
             }
         };
 
+        final SSLContext sslContext = SSLContext.getInstance("TLS");
         sslContext.init(null, new TrustManager[] { tm }, null);
+        final SSLSessionContext sessions = sslContext.getClientSessionContext();
+        if (sessions != null) {
+            sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+            sessions.setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+        }
+        sFactory = sslContext.getSocketFactory();
+        return sFactory;
     }
 
     @Override
     public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException, UnknownHostException {
-        return sslContext.getSocketFactory().createSocket(socket, host, port, autoClose);
+        return mFactory.createSocket(socket, host, port, autoClose);
     }
 
     @Override
     public Socket createSocket() throws IOException {
-        return sslContext.getSocketFactory().createSocket();
+        return mFactory.createSocket();
+    }
+
+    /**
+     * Apply the profile's buffer sizes, which only take full effect when
+     * set before connecting, and connect.  The socket is connected by host
+     * name, which is also what the session cache is keyed by, so
+     * reconnects to the same host resume the earlier session.  Resolving,
+     * connecting and the handshake are done one by one, rather than by the
+     * superclass, so that each can be timed into {@link RequestTiming}.
+     */
+    @Override
+    public Socket connectSocket(Socket sock, String host, int port, InetAddress localAddress, int localPort,
+            HttpParams params) throws IOException {
+        if (sock == null) {
+            sock = createSocket();
+        }
+        if (mProfile.receiveBufferSize > 0) {
+            sock.setReceiveBufferSize(mProfile.receiveBufferSize);
+        }
+        if (mProfile.sendBufferSize > 0) {
+            sock.setSendBufferSize(mProfile.sendBufferSize);
+        }
+        if (localAddress != null || localPort > 0) {
+            sock.bind(new InetSocketAddress(localAddress, Math.max(0, localPort)));
+        }
+        final RequestTiming timing = RequestTiming.current();
+        final SSLSocket ssl = (SSLSocket)sock;
+        try {
+            long start = System.nanoTime();
+            final InetSocketAddress remote = resolve(host, port, timing);
+            start = System.nanoTime();
+            ssl.connect(remote, HttpConnectionParams.getConnectionTimeout(params));
+            ssl.setSoTimeout(HttpConnectionParams.getSoTimeout(params));
+            if (timing != null) {
+                timing.connectNanos = System.nanoTime() - start;
+            }
+            start = System.nanoTime();
+            ssl.startHandshake();
+            if (timing != null) {
+                timing.tlsNanos = System.nanoTime() - start;
+            }
+            getHostnameVerifier().verify(host, ssl);
+        } catch (IOException e) {
+            try {
+                ssl.close();
+            } catch (IOException ignored) {
+            }
+            throw e;
+        }
+        return ssl;
+    }
+
+    /**
+     * Look {@code host} up, recording how long it took.  The address keeps
+     * the host name, so TLS sessions are still keyed by name.
+     */
+    static InetSocketAddress resolve(String host, int port, RequestTiming timing) throws IOException {
+        final long start = System.nanoTime();
+        final InetAddress address = InetAddress.getByName(host);
+        if (timing != null) {
+            timing.dnsNanos = System.nanoTime() - start;
+        }
+        return new InetSocketAddress(address, port);
     }
 
+    /** Plain sockets, with resolving and connecting timed like TLS ones. */
+    private static class TimedPlainSocketFactory implements SocketFactory {
+        private final PlainSocketFactory mFactory = PlainSocketFactory.getSocketFactory();
+
+        public Socket createSocket() {
+            return mFactory.createSocket();
+        }
+
+        public Socket connectSocket(Socket sock, String host, int port, InetAddress localAddress, int localPort,
+                HttpParams params) throws IOException {
+            final RequestTiming timing = RequestTiming.current();
+            final InetSocketAddress remote = resolve(host, port, timing);
+            final long start = System.nanoTime();
+            sock = mFactory.connectSocket(sock, remote.getAddress().getHostAddress(), port, localAddress, localPort,
+                    params);
+            if (timing != null) {
+                timing.connectNanos = System.nanoTime() - start;
+            }
+            return sock;
+        }
+
+        public boolean isSecure(Socket sock) {
+            return mFactory.isSecure(sock);
+        }
+    }
+
+    /**
+     * Without the stale check a request may be written to a connection the
+     * server has already closed, and the default handler then sends it
+     * again whatever it is.  This one never resends a request with a body
+     * (e.g. the login POST) once it has gone out.
+     */
+    private static class IdempotentRetryHandler extends DefaultHttpRequestRetryHandler {
+        @Override
+        public boolean retryRequest(IOException exception, int executionCount, HttpContext context) {
+            final Object request = context.getAttribute(ExecutionContext.HTTP_REQUEST);
+            final Boolean sent = (Boolean)context.getAttribute(ExecutionContext.HTTP_REQ_SENT);
+            if (request instanceof HttpEntityEnclosingRequest && sent != null && sent.booleanValue()) {
+                return false;
+            }
+            return super.retryRequest(exception, executionCount, context);
+        }
+    }
 
     public static HttpClient getNewHttpClient() {
+        return getNewHttpClient(DEFAULT_MAX_PER_ROUTE);
+    }
+
+    /**
+     * @param maxPerRoute the number of connections allowed to a single
+     *        host at once, e.g. the number of segments of a download.
+     */
+    public static HttpClient getNewHttpClient(int maxPerRoute) {
+        return getNewHttpClient(maxPerRoute, TransportProfile.DEFAULT);
+    }
+
+    public static HttpClient getNewHttpClient(int maxPerRoute, final TransportProfile profile) {
         try {
             KeyStore trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
             trustStore.load(null, null);
     
-            SSLSocketFactory sf = new MySSLSocketFactory(trustStore);
+            SSLSocketFactory sf = new MySSLSocketFactory(trustStore, profile);
             sf.setHostnameVerifier(SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
     
             HttpParams params = new BasicHttpParams();
             HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
             HttpProtocolParams.setContentCharset(params, HTTP.UTF_8);
+            ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxPerRoute));
+            ConnManagerParams.setMaxTotalConnections(params, Math.max(MAX_TOTAL_CONNECTIONS, maxPerRoute));
+            profile.apply(params);
     
             SchemeRegistry registry = new SchemeRegistry();
-            registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+            registry.register(new Scheme("http", new TimedPlainSocketFactory(), 80));
             registry.register(new Scheme("https", sf, 443));
     
             ClientConnectionManager ccm = new ThreadSafeClientConnManager(params, registry);
     
-            return new DefaultHttpClient(ccm, params);
+            final DefaultHttpClient client = new DefaultHttpClient(ccm, params);
+            client.setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy() {
+                @Override
+                public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                    // Honor a Keep-Alive header if there is one, else use
+                    // the profile's duration rather than "forever".
+                    final long duration = super.getKeepAliveDuration(response, context);
+                    return duration > 0 ? duration : profile.keepAliveMillis;
+                }
+            });
+            if (!profile.staleCheck) {
+                client.setHttpRequestRetryHandler(new IdempotentRetryHandler());
+            }
+            return client;
         } catch (Exception e) {
             return new DefaultHttpClient();
         }
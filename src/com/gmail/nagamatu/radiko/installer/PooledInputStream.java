@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2012 Tatsuo Nagamatsu <nagamatu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.nagamatu.radiko.installer;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A buffered stream whose buffer comes from a {@link BufferPool} and goes
+ * back to it on {@link #close()}.  Meant for parsers reading byte by byte
+ * from an inflater or a socket.
+ */
+final class PooledInputStream extends FilterInputStream {
+    private final BufferPool mPool;
+    private byte[] mBuf;
+    private int mPos;
+    private int mCount;
+
+    public PooledInputStream(InputStream in, BufferPool pool, int size) {
+        super(in);
+        mPool = pool;
+        mBuf = pool.acquire(size);
+    }
+
+    private boolean fill() throws IOException {
+        if (mBuf == null) {
+            throw new IOException("Stream closed");
+        }
+        final int n = in.read(mBuf, 0, mBuf.length);
+        if (n <= 0) {
+            return false;
+        }
+        mPos = 0;
+        mCount = n;
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (mPos >= mCount && !fill()) {
+            return -1;
+        }
+        return mBuf[mPos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (mBuf == null) {
+            throw new IOException("Stream closed");
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (mPos >= mCount) {
+            // Large reads bypass the buffer.
+            if (len >= mBuf.length) {
+                return in.read(b, off, len);
+            }
+            if (!fill()) {
+                return -1;
+            }
+        }
+        final int n = Math.min(len, mCount - mPos);
+        System.arraycopy(mBuf, mPos, b, off, n);
+        mPos += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        final int buffered = mCount - mPos;
+        if (buffered > 0) {
+            final int k = (int)Math.min(n, buffered);
+            mPos += k;
+            return k;
+        }
+        return in.skip(n);
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (mCount - mPos) + in.available();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        final byte[] buf = mBuf;
+        mBuf = null;
+        mPos = mCount = 0;
+        try {
+            in.close();
+        } finally {
+            if (buf != null) {
+                mPool.release(buf);
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2012 Tatsuo Nagamatsu <nagamatu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gmail.nagamatu.radiko.installer;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects byte counts from download threads and forwards them to the UI
+ * as a percentage, at most once per frame and only when it changed.
+ *
+ * <p>Download threads only touch atomics; this object itself is the one
+ * and only Runnable ever posted, and at most one post is outstanding.
+ */
+class ProgressReporter implements Runnable {
+    interface Listener {
+        /** Called on the UI executor. */
+        void onProgress(int percent);
+    }
+
+    /** Roughly one frame at 60 fps. */
+    private static final long MIN_INTERVAL_NANOS = 16 * 1000 * 1000L;
+
+    private final Executor mUiExecutor;
+    private final Listener mListener;
+    private final AtomicLong mDone = new AtomicLong();
+    private final AtomicBoolean mPosted = new AtomicBoolean();
+
+    private volatile long mTotal;
+    private volatile int mPublished = -1;
+    private volatile long mLastPost;
+
+    public ProgressReporter(Executor uiExecutor, Listener listener) {
+        mUiExecutor = uiExecutor;
+        mListener = listener;
+    }
+
+    /** Start reporting a transfer of {@code total} bytes, {@code done} of which are already there. */
+    public void start(long total, long done) {
+        mTotal = total;
+        mDone.set(done);
+        mPublished = -1;
+        mLastPost = 0;
+        publish(done);
+    }
+
+    /** Record {@code n} more bytes.  Safe to call from several threads. */
+    public void add(long n) {
+        publish(mDone.addAndGet(n));
+    }
+
+    public long getDone() {
+        return mDone.get();
+    }
+
+    private void publish(long done) {
+        final long total = mTotal;
+        if (total <= 0) {
+            return;
+        }
+        final int percent = percent(done, total);
+        if (percent == mPublished) {
+            return;
+        }
+        final long now = System.nanoTime();
+        if (percent < 100 && now - mLastPost < MIN_INTERVAL_NANOS) {
+            return;
+        }
+        if (mPosted.compareAndSet(false, true)) {
+            mLastPost = now;
+            mUiExecutor.execute(this);
+        }
+    }
+
+    public void run() {
+        mPosted.set(false);
+        final int percent = percent(mDone.get(), mTotal);
+        mPublished = percent;
+        mListener.onProgress(percent);
+    }
+
+    private static int percent(long done, long total) {
+        return done >= total ? 100 : (int)(100 * done / total);
+    }
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright (C) 2012 Tatsuo Nagamatsu <nagamatu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gmail.nagamatu.radiko.installer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes protobuf fields from a byte array, a heap {@link ByteBuffer} or
+ * a stream.
+ *
+ * <p>A stream is read into a buffer supplied by the caller, which must be
+ * at least as large as the longest string or bytes field to be read with
+ * {@link #readRawString}; nothing else is allocated while decoding.
+ * Embedded messages are entered with {@link #pushLimit}, after which
+ * {@link #readTag} returns 0 at the end of the message as it does at the
+ * end of the input.
+ */
+final class ProtoReader {
+    private static final int MAX_VARINT_SIZE = 10;
+    private static final int NO_LIMIT = Integer.MAX_VALUE;
+
+    private final InputStream mIn;
+    private final byte[] mBuf;
+    /** Next byte to read. */
+    private int mOff;
+    /** End of the data in mBuf. */
+    private int mBufEnd;
+    /** End of the data in mBuf that is within the current limit. */
+    private int mEnd;
+    /** Position in the input of mBuf[0]. */
+    private int mBase;
+    private int mLimit = NO_LIMIT;
+
+    public ProtoReader(byte[] buf, int off, int len) {
+        mIn = null;
+        mBuf = buf;
+        mOff = off;
+        mBufEnd = off + len;
+        mEnd = mBufEnd;
+        mBase = -off;
+    }
+
+    /**
+     * Read the remaining bytes of {@code buf}, in place.  The buffer's own
+     * position is not moved.
+     *
+     * @throws IllegalArgumentException if {@code buf} has no array.
+     */
+    public ProtoReader(ByteBuffer buf) {
+        this(array(buf), buf.arrayOffset() + buf.position(), buf.remaining());
+    }
+
+    /** Read {@code in} through {@code buf}. */
+    public ProtoReader(InputStream in, byte[] buf) {
+        mIn = in;
+        mBuf = buf;
+    }
+
+    private static byte[] array(ByteBuffer buf) {
+        if (!buf.hasArray()) {
+            throw new IllegalArgumentException("Not a heap buffer");
+        }
+        return buf.array();
+    }
+
+    /** @return the number of bytes consumed so far. */
+    public int getPosition() {
+        return mBase + mOff;
+    }
+
+    /**
+     * Make the next {@code len} bytes look like the whole input, e.g. to
+     * read an embedded message.
+     *
+     * @return the previous limit, for {@link #popLimit}.
+     */
+    public int pushLimit(int len) throws IOException {
+        final int limit = getPosition() + len;
+        if (len < 0 || limit > mLimit || limit < 0) {
+            throw new IOException("Bad length in message: " + len);
+        }
+        final int old = mLimit;
+        mLimit = limit;
+        recomputeEnd();
+        return old;
+    }
+
+    public void popLimit(int old) {
+        mLimit = old;
+        recomputeEnd();
+    }
+
+    /** @return true if the input, or the current limit, has been reached. */
+    public boolean isAtEnd() throws IOException {
+        return mOff == mEnd && !refill(1);
+    }
+
+    /**
+     * @return the next field's tag, or 0 at the end of the input or of the
+     *         current limit.
+     */
+    public int readTag() throws IOException {
+        if (isAtEnd()) {
+            return 0;
+        }
+        final int tag = readRawVarint32();
+        if (WireFormat.getTagFieldNumber(tag) == 0) {
+            throw new IOException("Invalid tag in message: " + tag);
+        }
+        return tag;
+    }
+
+    /**
+     * Skip the field whose tag has just been read, groups included.
+     *
+     * @return false if the tag was an end group, which has nothing to skip.
+     */
+    public boolean skipField(int tag) throws IOException {
+        switch (WireFormat.getTagWireType(tag)) {
+            case WireFormat.WIRETYPE_VARINT:
+                readRawVarint64();
+                return true;
+            case WireFormat.WIRETYPE_FIXED64:
+                skipRawBytes(8);
+                return true;
+            case WireFormat.WIRETYPE_LENGTH_DELIMITED:
+                skipRawBytes(readRawVarint32());
+                return true;
+            case WireFormat.WIRETYPE_START_GROUP:
+                skipGroup(WireFormat.getTagFieldNumber(tag));
+                return true;
+            case WireFormat.WIRETYPE_END_GROUP:
+                return false;
+            case WireFormat.WIRETYPE_FIXED32:
+                skipRawBytes(4);
+                return true;
+            default:
+                throw new IOException("Bad wire type in message: " + tag);
+        }
+    }
+
+    /** Skip the rest of a group whose start tag has just been read. */
+    public void skipGroup(int field) throws IOException {
+        final int end = WireFormat.makeTag(field, WireFormat.WIRETYPE_END_GROUP);
+        for (;;) {
+            final int tag = readTag();
+            if (tag == 0) {
+                throw new EOFException("Truncated message");
+            }
+            if (tag == end) {
+                return;
+            }
+            if (!skipField(tag)) {
+                throw new IOException("Mismatched end group in message: " + tag);
+            }
+        }
+    }
+
+    /** @return an int32, int64 or uint64 field's value. */
+    public long readInt64() throws IOException {
+        return readRawVarint64();
+    }
+
+    public int readInt32() throws IOException {
+        return readRawVarint32();
+    }
+
+    public int readSInt32() throws IOException {
+        return WireFormat.decodeZigZag32(readRawVarint32());
+    }
+
+    public long readSInt64() throws IOException {
+        return WireFormat.decodeZigZag64(readRawVarint64());
+    }
+
+    public boolean readBool() throws IOException {
+        return readRawVarint64() != 0;
+    }
+
+    public int readFixed32() throws IOException {
+        require(4);
+        final byte[] buf = mBuf;
+        final int pos = mOff;
+        mOff = pos + 4;
+        return (buf[pos] & 0xff) | (buf[pos + 1] & 0xff) << 8 | (buf[pos + 2] & 0xff) << 16
+                | (buf[pos + 3] & 0xff) << 24;
+    }
+
+    public long readFixed64() throws IOException {
+        return (readFixed32() & 0xffffffffL) | (long)readFixed32() << 32;
+    }
+
+    public String readString() throws IOException {
+        return readRawString(readRawVarint32());
+    }
+
+    /** Read {@code len} bytes of UTF-8, e.g. after checking a length prefix. */
+    public String readRawString(int len) throws IOException {
+        require(len);
+        final String s = new String(mBuf, mOff, len, "UTF-8");
+        mOff += len;
+        return s;
+    }
+
+    /**
+     * Decode a varint of up to ten bytes, keeping the low 32 bits, as for
+     * an int32 that was sign extended.
+     */
+    public int readRawVarint32() throws IOException {
+        final byte[] buf = mBuf;
+        int pos = mOff;
+        if (mEnd - pos >= MAX_VARINT_SIZE) {
+            // Enough bytes at hand: no bounds checks, and one test per byte.
+            // Each byte is xored in with its sign; the signs of the
+            // continuation bytes are taken out again at the end.
+            int x = buf[pos++];
+            if (x >= 0) {
+                mOff = pos;
+                return x;
+            }
+            if ((x ^= buf[pos++] << 7) < 0) {
+                x ^= ~0 << 7;
+            } else if ((x ^= buf[pos++] << 14) >= 0) {
+                x ^= (~0 << 7) ^ (~0 << 14);
+            } else if ((x ^= buf[pos++] << 21) < 0) {
+                x ^= (~0 << 7) ^ (~0 << 14) ^ (~0 << 21);
+            } else {
+                final int y = buf[pos++];
+                x ^= y << 28;
+                x ^= (~0 << 7) ^ (~0 << 14) ^ (~0 << 21) ^ (~0 << 28);
+                if (y < 0 && buf[pos++] < 0 && buf[pos++] < 0 && buf[pos++] < 0 && buf[pos++] < 0
+                        && buf[pos++] < 0) {
+                    throw new IOException("Malformed varint in message");
+                }
+            }
+            mOff = pos;
+            return x;
+        }
+        return (int)readRawVarint64Slow();
+    }
+
+    public long readRawVarint64() throws IOException {
+        final byte[] buf = mBuf;
+        int pos = mOff;
+        if (mEnd - pos >= MAX_VARINT_SIZE) {
+            long x = buf[pos++];
+            if (x >= 0) {
+                mOff = pos;
+                return x;
+            }
+            int shift = 7;
+            x &= 0x7f;
+            for (;;) {
+                final int b = buf[pos++];
+                x |= (long)(b & 0x7f) << shift;
+                if (b >= 0) {
+                    mOff = pos;
+                    return x;
+                }
+                shift += 7;
+                if (shift >= 64) {
+                    throw new IOException("Malformed varint in message");
+                }
+            }
+        }
+        return readRawVarint64Slow();
+    }
+
+    /** Byte by byte, for varints near the end of the buffer or the limit. */
+    private long readRawVarint64Slow() throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = readRawByte();
+            result |= (long)(b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("Malformed varint in message");
+    }
+
+    public int readRawByte() throws IOException {
+        if (mOff == mEnd && !refill(1)) {
+            throw new EOFException("Truncated message");
+        }
+        return mBuf[mOff++] & 0xff;
+    }
+
+    /** Skip {@code len} bytes, reading as little as possible of a stream. */
+    public void skipRawBytes(int len) throws IOException {
+        if (len < 0 || getPosition() + len > mLimit) {
+            throw new EOFException("Truncated message");
+        }
+        final int available = mBufEnd - mOff;
+        if (len <= available) {
+            mOff += len;
+            return;
+        }
+        // Drop the buffer and skip the rest on the stream.
+        int left = len - available;
+        mBase += mBufEnd;
+        mOff = 0;
+        mBufEnd = 0;
+        while (left > 0) {
+            final int n = mIn == null ? -1 : mIn.read(mBuf, 0, Math.min(left, mBuf.length));
+            if (n < 0) {
+                recomputeEnd();
+                throw new EOFException("Truncated message");
+            }
+            left -= n;
+            mBase += n;
+        }
+        recomputeEnd();
+    }
+
+    /** Make sure {@code n} bytes can be read from mBuf at mOff. */
+    private void require(int n) throws IOException {
+        if (n < 0) {
+            throw new IOException("Bad length in message: " + n);
+        }
+        if (mEnd - mOff < n && !refill(n)) {
+            if (mIn != null && n > mBuf.length) {
+                throw new IOException("Field too long for the buffer: " + n);
+            }
+            throw new EOFException("Truncated message");
+        }
+    }
+
+    /**
+     * Read more of the stream until {@code n} bytes within the limit are
+     * buffered.
+     *
+     * @return false if there are not that many.
+     */
+    private boolean refill(int n) throws IOException {
+        if (mIn == null || n > mBuf.length || mBase + mBufEnd >= mLimit) {
+            return false;
+        }
+        if (mBuf.length - mOff < n) {
+            System.arraycopy(mBuf, mOff, mBuf, 0, mBufEnd - mOff);
+            mBase += mOff;
+            mBufEnd -= mOff;
+            mOff = 0;
+        }
+        while (mBufEnd - mOff < n) {
+            final int read = mIn.read(mBuf, mBufEnd, mBuf.length - mBufEnd);
+            if (read < 0) {
+                break;
+            }
+            mBufEnd += read;
+        }
+        recomputeEnd();
+        return mEnd - mOff >= n;
+    }
+
+    private void recomputeEnd() {
+        mEnd = mBufEnd;
+        if (mLimit != NO_LIMIT && mBase + mBufEnd > mLimit) {
+            mEnd = mLimit - mBase;
+        }
+    }
+}
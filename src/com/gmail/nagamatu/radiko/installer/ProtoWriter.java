@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2012 Tatsuo Nagamatsu <nagamatu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gmail.nagamatu.radiko.installer;
+
+/**
+ * Encodes protobuf fields into a byte array.
+ *
+ * <p>Meant to be used the way {@link MarketRequest} does: add up the
+ * size of the message with the static {@code compute...} methods, then
+ * encode it into an array of exactly that size, which involves no other
+ * allocation.  Writing past the end of the array grows it, so a writer can
+ * also be used where the size is not worth computing first.
+ */
+final class ProtoWriter {
+    private static final int MAX_VARINT_SIZE = 10;
+
+    private byte[] mBuf;
+    private int mPos;
+
+    /** Write into {@code buf}, from its start. */
+    public ProtoWriter(byte[] buf) {
+        mBuf = buf;
+    }
+
+    public ProtoWriter(int initialCapacity) {
+        this(new byte[initialCapacity]);
+    }
+
+    public int getPosition() {
+        return mPos;
+    }
+
+    /**
+     * @return what has been written; the array itself if it was filled
+     *         exactly.
+     */
+    public byte[] toByteArray() {
+        if (mPos == mBuf.length) {
+            return mBuf;
+        }
+        final byte[] result = new byte[mPos];
+        System.arraycopy(mBuf, 0, result, 0, mPos);
+        return result;
+    }
+
+    public void writeTag(int field, int wireType) {
+        writeRawVarint32(WireFormat.makeTag(field, wireType));
+    }
+
+    /** Negative values take ten bytes, as they are sign extended to 64 bits. */
+    public void writeInt32(int field, int value) {
+        writeTag(field, WireFormat.WIRETYPE_VARINT);
+        if (value >= 0) {
+            writeRawVarint32(value);
+        } else {
+            writeRawVarint64(value);
+        }
+    }
+
+    public void writeInt64(int field, long value) {
+        writeTag(field, WireFormat.WIRETYPE_VARINT);
+        writeRawVarint64(value);
+    }
+
+    public void writeSInt32(int field, int value) {
+        writeTag(field, WireFormat.WIRETYPE_VARINT);
+        writeRawVarint32(WireFormat.encodeZigZag32(value));
+    }
+
+    public void writeSInt64(int field, long value) {
+        writeTag(field, WireFormat.WIRETYPE_VARINT);
+        writeRawVarint64(WireFormat.encodeZigZag64(value));
+    }
+
+    public void writeBool(int field, boolean value) {
+        writeTag(field, WireFormat.WIRETYPE_VARINT);
+        writeRawByte(value ? 1 : 0);
+    }
+
+    public void writeFixed32(int field, int value) {
+        writeTag(field, WireFormat.WIRETYPE_FIXED32);
+        writeRawLittleEndian32(value);
+    }
+
+    public void writeFixed64(int field, long value) {
+        writeTag(field, WireFormat.WIRETYPE_FIXED64);
+        writeRawLittleEndian64(value);
+    }
+
+    public void writeString(int field, String value) {
+        writeTag(field, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+        writeRawVarint32(computeUtf8Size(value));
+        writeRawUtf8(value);
+    }
+
+    public void writeBytes(int field, byte[] value, int off, int len) {
+        writeTag(field, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+        writeRawVarint32(len);
+        writeRawBytes(value, off, len);
+    }
+
+    /**
+     * Start an embedded message of {@code len} bytes, which the caller then
+     * writes.
+     */
+    public void writeMessageHeader(int field, int len) {
+        writeTag(field, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+        writeRawVarint32(len);
+    }
+
+    public void writeStartGroup(int field) {
+        writeTag(field, WireFormat.WIRETYPE_START_GROUP);
+    }
+
+    public void writeEndGroup(int field) {
+        writeTag(field, WireFormat.WIRETYPE_END_GROUP);
+    }
+
+    public void writeRawByte(int b) {
+        ensure(1);
+        mBuf[mPos++] = (byte)b;
+    }
+
+    public void writeRawBytes(byte[] b, int off, int len) {
+        ensure(len);
+        System.arraycopy(b, off, mBuf, mPos, len);
+        mPos += len;
+    }
+
+    /** Write {@code value} as an unsigned varint. */
+    public void writeRawVarint32(int value) {
+        ensure(computeRawVarint32Size(value));
+        final byte[] buf = mBuf;
+        int pos = mPos;
+        while ((value & ~0x7f) != 0) {
+            buf[pos++] = (byte)((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        buf[pos++] = (byte)value;
+        mPos = pos;
+    }
+
+    public void writeRawVarint64(long value) {
+        ensure(computeRawVarint64Size(value));
+        final byte[] buf = mBuf;
+        int pos = mPos;
+        while ((value & ~0x7fL) != 0) {
+            buf[pos++] = (byte)(((int)value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        buf[pos++] = (byte)value;
+        mPos = pos;
+    }
+
+    public void writeRawLittleEndian32(int value) {
+        ensure(4);
+        final byte[] buf = mBuf;
+        final int pos = mPos;
+        buf[pos] = (byte)value;
+        buf[pos + 1] = (byte)(value >> 8);
+        buf[pos + 2] = (byte)(value >> 16);
+        buf[pos + 3] = (byte)(value >> 24);
+        mPos = pos + 4;
+    }
+
+    public void writeRawLittleEndian64(long value) {
+        writeRawLittleEndian32((int)value);
+        writeRawLittleEndian32((int)(value >>> 32));
+    }
+
+    /** Write the UTF-8 bytes of {@code s}, without a length. */
+    public void writeRawUtf8(String s) {
+        final int len = s.length();
+        // At most three bytes per char, a surrogate pair being two chars;
+        // count exactly only if that much might not fit.
+        if (mBuf.length - mPos < len * 3) {
+            ensure(computeUtf8Size(s));
+        }
+        final byte[] buf = mBuf;
+        int pos = mPos;
+        for (int i = 0; i < len; i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                buf[pos++] = (byte)c;
+            } else if (c < 0x800) {
+                buf[pos++] = (byte)(0xc0 | (c >> 6));
+                buf[pos++] = (byte)(0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < len
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                final int cp = Character.toCodePoint(c, s.charAt(++i));
+                buf[pos++] = (byte)(0xf0 | (cp >> 18));
+                buf[pos++] = (byte)(0x80 | ((cp >> 12) & 0x3f));
+                buf[pos++] = (byte)(0x80 | ((cp >> 6) & 0x3f));
+                buf[pos++] = (byte)(0x80 | (cp & 0x3f));
+            } else {
+                buf[pos++] = (byte)(0xe0 | (c >> 12));
+                buf[pos++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+                buf[pos++] = (byte)(0x80 | (c & 0x3f));
+            }
+        }
+        mPos = pos;
+    }
+
+    public static int computeTagSize(int field) {
+        return computeRawVarint32Size(WireFormat.makeTag(field, 0));
+    }
+
+    public static int computeRawVarint32Size(int value) {
+        // One byte per started group of 7 bits; no loop, no branches.
+        return (31 - Integer.numberOfLeadingZeros(value | 1)) / 7 + 1;
+    }
+
+    public static int computeRawVarint64Size(long value) {
+        return (63 - Long.numberOfLeadingZeros(value | 1)) / 7 + 1;
+    }
+
+    public static int computeInt32Size(int field, int value) {
+        return computeTagSize(field) + (value >= 0 ? computeRawVarint32Size(value) : MAX_VARINT_SIZE);
+    }
+
+    public static int computeStringSize(int field, String value) {
+        final int len = computeUtf8Size(value);
+        return computeTagSize(field) + computeRawVarint32Size(len) + len;
+    }
+
+    /** @return the size of a message field whose contents take {@code len} bytes. */
+    public static int computeMessageSize(int field, int len) {
+        return computeTagSize(field) + computeRawVarint32Size(len) + len;
+    }
+
+    public static int computeUtf8Size(String s) {
+        final int len = s.length();
+        int n = len;
+        for (int i = 0; i < len; i++) {
+            final char c = s.charAt(i);
+            if (c >= 0x80) {
+                if (c < 0x800) {
+                    n += 1;
+                } else if (Character.isHighSurrogate(c) && i + 1 < len
+                        && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    n += 2;
+                    i++;
+                } else {
+                    n += 2;
+                }
+            }
+        }
+        return n;
+    }
+
+    private void ensure(int n) {
+        if (mPos + n > mBuf.length) {
+            final byte[] buf = new byte[Math.max(mBuf.length * 2, mPos + n)];
+            System.arraycopy(mBuf, 0, buf, 0, mPos);
+            mBuf = buf;
+        }
+    }
+}
@@ -16,117 +16,254 @@
 
 package com.gmail.nagamatu.radiko.installer;
 
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.NameValuePair;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.message.BasicNameValuePair;
-import org.apache.http.protocol.HTTP;
-
 import android.accounts.Account;
 import android.accounts.AccountManager;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.app.ProgressDialog;
-import android.content.Context;
 import android.content.DialogInterface;
 import android.content.DialogInterface.OnClickListener;
 import android.content.Intent;
-import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.StatFs;
 import android.view.LayoutInflater;
 import android.widget.EditText;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.zip.GZIPInputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.Executor;
 
 public class RadikoInstallerActivity extends Activity {
-    private static final String URL_LOGIN = "https://www.google.com/accounts/ClientLogin";
-    private static final String URL_DOWNLOAD = "https://android.clients.google.com/market/api/ApiRequest";
-    private static final String URL_GOOGLE_TALK_PROVIDER = "content://com.google.android.gsf.gservices";
-    private static final String ACCOUNT_TYPE_HOSTED_OR_GOOGLE = "HOSTED_OR_GOOGLE";
-    private static final String LOGIN_SERVICE = "androidsecure";
-    private static final int PROTOCOL_VERSION = 2;
-    
-    private static final Pattern PATTERN_URL = Pattern.compile("https?:\\/\\/[^:]+");
-    private static final Pattern PATTERN_MARKETDA = Pattern.compile("MarketDA.*?(\\d+)");
+    private static final String ACCOUNT_TYPE_GOOGLE = "com.google";
+    private static final String LOGIN_SERVICE = InstallerEngine.LOGIN_SERVICE;
 
     private static final int DIALOG_SELECT_ACCOUNT = 0;
     private static final int DIALOG_PASSWD = 1;
     private static final int DIALOG_PROGRESS = 2;
 
-    private static final int BUFSIZE = 4096;
+    private static final String APK_CACHE_DIR = "RadikoInstaller";
+    private static final long APK_CACHE_BUDGET = 64 * 1024 * 1024L;
+
+    private static final String TOKEN_CACHE_FILE = "tokens";
+    private static final long TOKEN_LIFETIME = 7 * 24 * 60 * 60 * 1000L;
+    private static final long TOKEN_REFRESH_AHEAD = 24 * 60 * 60 * 1000L;
 
-    private static final String PARAMS_EMAIL = "Email";
-    private static final String PARAMS_PASSWD = "Passwd";
-    private static final String PARAMS_SERVICE = "service";
-    private static final String PARAMS_ACCOUNTTYPE = "accountType";
+    /** JSON dump of the last run's {@link Metrics}, e.g. for adb pull. */
+    private static final String METRICS_FILE = "metrics.json";
 
     private static final String PACKAGE_NAME = "jp.radiko.Player";
 
-    private String mDeviceId;
+    /**
+     * String array of packages to install in one go, instead of the
+     * default {@link #PACKAGE_NAME}.
+     */
+    public static final String EXTRA_PACKAGES = "com.gmail.nagamatu.radiko.installer.extra.PACKAGES";
+
+    /**
+     * Name of the HTTP engine to use, one of the HttpTransports constants;
+     * Apache HttpClient if not given.
+     */
+    public static final String EXTRA_TRANSPORT = "com.gmail.nagamatu.radiko.installer.extra.TRANSPORT";
+
+    /**
+     * Number of bytes the APK cache may keep on external storage, as a
+     * long; 64 MB if not given.
+     */
+    public static final String EXTRA_CACHE_BUDGET = "com.gmail.nagamatu.radiko.installer.extra.CACHE_BUDGET";
+
+    private String[] mPackages;
     private Account[] mAccounts;
     private Account mAccount;
     private String mPasswd;
 
-    private final Map<String,String> mLoginInfo = new HashMap<String,String>();
-
-    private static final Uri URI_GFS_SERVICE = Uri.parse(URL_GOOGLE_TALK_PROVIDER);
-
-    private final HttpClient mClient = MySSLSocketFactory.getNewHttpClient();
-
-    private static String getDeviceId(Context context) {
-      String id = null;
-      Cursor c = context.getContentResolver().query(URI_GFS_SERVICE, null, null, new String[] {"android_id" }, null);
-      try {
-          c.moveToFirst();
-          id = Long.toHexString(Long.parseLong(c.getString(1)));
-      } catch (Exception e) {
-          e.printStackTrace();
-      } finally {
-          if (c != null) {
-              c.close();
-          }
-      }
-      return id;
+    private AuthTokenCache mTokenCache;
+
+    private InstallerRuntime mRuntime;
+    private volatile InstallerEngine mEngine;
+    private volatile boolean mDestroyed;
+    private final Metrics mMetrics = new Metrics();
+    private long mCreated;
+
+    private final InstallerEngine.Listener mListener = new InstallerEngine.Listener() {
+        public void onProgress(int percent) {
+            final ProgressBar view = (ProgressBar)findViewById(R.id.progress);
+            view.setProgress(percent);
+        }
+
+        public void onStatus(int status) {
+            switch (status) {
+                case InstallerEngine.STATUS_LOGIN:
+                    updateMessage(R.string.login_google, null);
+                    break;
+                case InstallerEngine.STATUS_REQUEST:
+                    updateMessage(R.string.request_market, null);
+                    break;
+                case InstallerEngine.STATUS_DOWNLOAD:
+                    updateMessage(R.string.download_package, null);
+                    break;
+                case InstallerEngine.STATUS_INSTALL:
+                    updateMessage(R.string.install_package, null);
+                    break;
+            }
+        }
+
+        public String onTokenRejected(String rejected) throws IOException {
+            return reauthenticate(rejected);
+        }
+
+        public void onApkReady(String packageName, File apk) {
+            install(apk);
+        }
+
+        public void onMetrics(Metrics.Snapshot snapshot) {
+            writeMetrics(snapshot);
+        }
+    };
+
+    private void writeMetrics(Metrics.Snapshot snapshot) {
+        Writer out = null;
+        try {
+            out = new OutputStreamWriter(openFileOutput(METRICS_FILE, MODE_PRIVATE), "UTF-8");
+            out.write(snapshot.toJson());
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
     }
 
     /** Called when the activity is first created. */
     @Override
     public void onCreate(Bundle savedInstanceState) {
+        mCreated = System.nanoTime();
         super.onCreate(savedInstanceState);
         setContentView(R.layout.main);
 
-        mDeviceId = getDeviceId(this);
-        if (mDeviceId == null) {
-            updateMessage(R.string.error_download, "Device ID not found");
-            return;
+        // The transport comes in the background while the user picks an
+        // account and types a password; see getEngine().
+        mRuntime = InstallerRuntime.get(this);
+        mRuntime.prepare(getIntent().getStringExtra(EXTRA_TRANSPORT));
+        mPackages = getIntent().getStringArrayExtra(EXTRA_PACKAGES);
+        if (mPackages == null || mPackages.length == 0) {
+            mPackages = new String[] { PACKAGE_NAME };
         }
 
+        mTokenCache = AuthTokenCache.open(new File(getFilesDir(), TOKEN_CACHE_FILE), TOKEN_REFRESH_AHEAD);
         updateMessage(R.string.check_account_passwd, null);
-        getEmailAndPasswd();
+        getWindow().getDecorView().post(new Runnable() {
+            public void run() {
+                recordStartup("startup.first_frame");
+            }
+        });
+        checkDeviceId();
+    }
+
+    /**
+     * Ask for an account once the device ID is known; without one there is
+     * no point in asking for credentials.
+     */
+    private void checkDeviceId() {
+        new Thread(new Runnable() {
+            public void run() {
+                final String deviceId;
+                try {
+                    deviceId = InstallerRuntime.await(mRuntime.getDeviceId());
+                } catch (IOException e) {
+                    reportError(e);
+                    return;
+                }
+                runOnUiThread(new Runnable() {
+                    public void run() {
+                        if (mDestroyed) {
+                            return;
+                        }
+                        if (deviceId == null) {
+                            updateMessage(R.string.error_download, "Device ID not found");
+                            return;
+                        }
+                        getEmailAndPasswd();
+                    }
+                });
+            }
+        }).start();
+    }
+
+    @Override
+    protected void onDestroy() {
+        // Leaving must not leave a request hanging on to the thread, the
+        // connection and the radio.  The transport belongs to the runtime
+        // and stays for the next activity.
+        mDestroyed = true;
+        final InstallerEngine engine = mEngine;
+        if (engine != null) {
+            engine.cancel();
+        }
+        super.onDestroy();
+    }
+
+    /** Record the time since onCreate started under {@code name}, in microseconds. */
+    private void recordStartup(String name) {
+        mMetrics.histogram(name).record((System.nanoTime() - mCreated) / 1000);
+    }
+
+    /**
+     * Create the engine, waiting for the runtime to have the transport and
+     * the device ID if need be.  Not to be called on the UI thread.
+     */
+    private synchronized InstallerEngine getEngine() throws IOException {
+        if (mEngine != null) {
+            return mEngine;
+        }
+        final long start = System.nanoTime();
+        final HttpTransport transport = InstallerRuntime.await(
+                mRuntime.getTransport(getIntent().getStringExtra(EXTRA_TRANSPORT)));
+        final String deviceId = InstallerRuntime.await(mRuntime.getDeviceId());
+        if (deviceId == null) {
+            throw new IOException("Device ID not found");
+        }
+        mMetrics.histogram("startup.wait").record((System.nanoTime() - start) / 1000);
+        recordStartup("startup.ready");
+
+        final ApkCache apkCache = ApkCache.open(new File(Environment.getExternalStorageDirectory(), APK_CACHE_DIR),
+                getIntent().getLongExtra(EXTRA_CACHE_BUDGET, APK_CACHE_BUDGET));
+        final InstallerEngine engine = new InstallerEngine(transport, DeviceProfile.forDevice(deviceId), apkCache,
+                mListener, new Executor() {
+                    public void execute(Runnable command) {
+                        runOnUiThread(command);
+                    }
+                }) {
+            @Override
+            protected long getAvailableBytes(File dir) {
+                final StatFs stat = new StatFs(dir.getPath());
+                return (long)stat.getAvailableBlocks() * stat.getBlockSize();
+            }
+        };
+        engine.setMetrics(mMetrics);
+        mEngine = engine;
+        if (mDestroyed) {
+            // onDestroy came while we were waiting and had nothing to cancel.
+            engine.cancel();
+        }
+        return engine;
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        BufferPool.getDefault().trim();
     }
 
     private void updateMessage(final int id, final String error) {
@@ -135,7 +272,7 @@ public class RadikoInstallerActivity extends Activity {
             public void run() {
                 TextView view = (TextView)findViewById(R.id.message);
                 view.setText(id);
-                if (id == R.string.error_download) {
+                if (id == R.string.error_download || id == R.string.error_timeout) {
                     final ProgressBar bar = (ProgressBar)findViewById(R.id.working);
                     bar.setVisibility(ProgressBar.INVISIBLE);
                     final TextView errormsg = (TextView)findViewById(R.id.error);
@@ -145,19 +282,9 @@ public class RadikoInstallerActivity extends Activity {
         });
     }
 
-    private void updateProgress(final int progress) {
-        runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                final ProgressBar view = (ProgressBar)findViewById(R.id.progress);
-                view.setProgress(progress);
-            }
-        });
-    }
-
     private void getEmailAndPasswd() {
         final AccountManager am = AccountManager.get(this);
-        mAccounts = am.getAccountsByType("com.google");
+        mAccounts = am.getAccountsByType(ACCOUNT_TYPE_GOOGLE);
         mAccount = null;
 
         switch (mAccounts.length) {
@@ -166,7 +293,7 @@ public class RadikoInstallerActivity extends Activity {
                 break;
             case 1:
                 mAccount = mAccounts[0];
-                showDialog(DIALOG_PASSWD);
+                onAccountSelected();
                 break;
             default:
                 showDialog(DIALOG_SELECT_ACCOUNT);
@@ -174,6 +301,108 @@ public class RadikoInstallerActivity extends Activity {
         }
     }
 
+    /**
+     * Go straight to the ApiRequest if a token for the account is cached,
+     * otherwise ask for the password.
+     */
+    private void onAccountSelected() {
+        final String token = mTokenCache.get(mAccount.name, LOGIN_SERVICE);
+        if (token == null) {
+            showDialog(DIALOG_PASSWD);
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        getEngine().warm();
+                    } catch (IOException e) {
+                        reportError(e);
+                    }
+                }
+            }).start();
+            return;
+        }
+        if (mTokenCache.needsRefresh(mAccount.name, LOGIN_SERVICE)) {
+            refreshToken(token);
+        }
+        new Thread(new Runnable() {
+            public void run() {
+                try {
+                    getEngine().setAuthToken(token);
+                } catch (IOException e) {
+                    reportError(e);
+                    return;
+                }
+                runEngine();
+            }
+        }).start();
+    }
+
+    /**
+     * Replace the cached token in the background while the current one is
+     * still being used.  The AccountManager has to forget {@code current}
+     * first, or it would hand the same token back.
+     */
+    private void refreshToken(final String current) {
+        final Account account = mAccount;
+        new Thread(new Runnable() {
+            public void run() {
+                final String token = getTokenFromAccountManager(account, current);
+                if (token != null) {
+                    cacheToken(account, token);
+                }
+            }
+        }).start();
+    }
+
+    /**
+     * Get a token through the account's authenticator, which needs no
+     * password.
+     *
+     * @param stale a token the server refused or which is about to
+     *        expire, to be dropped from the AccountManager's own cache
+     *        first, or null
+     * @return the token, or null if none can be had without asking the user.
+     */
+    private String getTokenFromAccountManager(Account account, String stale) {
+        final AccountManager am = AccountManager.get(this);
+        if (stale != null) {
+            am.invalidateAuthToken(ACCOUNT_TYPE_GOOGLE, stale);
+        }
+        try {
+            return am.blockingGetAuthToken(account, LOGIN_SERVICE, false);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private void cacheToken(Account account, String token) {
+        try {
+            mTokenCache.put(account.name, LOGIN_SERVICE, token, TOKEN_LIFETIME);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * The server rejected the token: forget it and get a new one.  Called
+     * by the engine, once.
+     *
+     * @return the new token, or null if only the user can provide one.
+     */
+    private String reauthenticate(String rejected) throws IOException {
+        mTokenCache.invalidate(mAccount.name, LOGIN_SERVICE, rejected);
+        if (mPasswd != null) {
+            final String token = getEngine().login(mAccount.name, mPasswd);
+            cacheToken(mAccount, token);
+            return token;
+        }
+        final String token = getTokenFromAccountManager(mAccount, rejected);
+        if (token != null) {
+            cacheToken(mAccount, token);
+        }
+        return token;
+    }
+
     private Dialog onCreateSelectAccountDialog() {
         final AlertDialog.Builder builder = new AlertDialog.Builder(this);
         builder.setTitle(R.string.select_account);
@@ -186,7 +415,7 @@ public class RadikoInstallerActivity extends Activity {
             @Override
             public void onClick(DialogInterface dialog, int which) {
                 mAccount = mAccounts[which];
-                showDialog(DIALOG_PASSWD);
+                onAccountSelected();
             }
         });
         builder.setCancelable(false);
@@ -246,254 +475,45 @@ public class RadikoInstallerActivity extends Activity {
         return super.onCreateDialog(id);
     }
 
-    private static String streamToString(InputStream resultStream) throws IOException {
-        final BufferedReader reader = new java.io.BufferedReader(
-                new java.io.InputStreamReader(resultStream));
-        final StringBuffer res = new StringBuffer();
-        String aLine = reader.readLine();
-        while (aLine != null) {
-            res.append(aLine + "\n");
-            aLine = reader.readLine();
-        }
-        return res.toString();
-        
-    }
-
-    private List<NameValuePair> getParams() {
-        final List<NameValuePair> params = new ArrayList<NameValuePair>(4);
-        params.add(new BasicNameValuePair(PARAMS_EMAIL, mAccount.name));
-        params.add(new BasicNameValuePair(PARAMS_PASSWD, mPasswd));
-        params.add(new BasicNameValuePair(PARAMS_SERVICE, LOGIN_SERVICE));
-        params.add(new BasicNameValuePair(PARAMS_ACCOUNTTYPE, ACCOUNT_TYPE_HOSTED_OR_GOOGLE));
-        return params;
-    }
-
     private void login() {
         try {
-            final HttpPost request = new HttpPost(URL_LOGIN);
-            request.addHeader("Content-type", "application/x-www-form-urlencoded");
-            request.setEntity(new UrlEncodedFormEntity(getParams(), HTTP.UTF_8));
-            final HttpResponse response = mClient.execute(request);
-            final HttpEntity entity = response.getEntity();
-            if (response.getStatusLine().getStatusCode() >= 400) {
-                updateMessage(R.string.error_download, response.getStatusLine().getReasonPhrase());
-                return;
-            }
-            final InputStream in = entity.getContent();
-            try {
-                final DataInputStream din = new DataInputStream(in);
-                String line;
-                while ((line = din.readLine()) != null) {
-                    mLoginInfo.clear();
-                    final String ss[] = line.split("=");
-                    mLoginInfo.put(ss[0], ss[1]);
-                }
-            } finally {
-                in.close();
-            }
-            updateMessage(R.string.request_market, null);
-            apiRequest();
+            cacheToken(mAccount, getEngine().login(mAccount.name, mPasswd));
         } catch (Exception e) {
-            updateMessage(R.string.error_download, e.toString());
-        }
-    }
-
-    @SuppressWarnings("unused")
-    private static String readString(InputStream is) {
-        try {
-        final int len = readInt32(is);
-        final byte[] data = new byte[len];
-        is.read(data, 0, len);
-        return new String(data);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return null;
-    }
-
-    private static int readInt32(InputStream is) {
-        int n = 0;
-        try {
-            int b = is.read();
-            if (b <= 128) {
-                return b;
-            }
-            return (b - 128) + readInt32(is) * 128;
-        } catch (IOException e) {
-            e.printStackTrace();
+            reportError(e);
+            return;
         }
-        return n;
+        runEngine();
     }
 
-    private static void writeInt32(OutputStream os, int n) {
+    private void runEngine() {
         try {
-            for (int i = 0; i < 5 && n != 0; i++) {
-                int b = n % 128;
-                n >>= 7;
-                if (n != 0) {
-                    b += 128;
+            getEngine().run(mPackages);
+            finish();
+        } catch (InstallerEngine.AuthException e) {
+            runOnUiThread(new Runnable() {
+                public void run() {
+                    showDialog(DIALOG_PASSWD);
                 }
-                os.write(b);
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-
-    private static void writeString(OutputStream os, String s) {
-        try {
-            byte[] buf = s.getBytes();
-            writeInt32(os, buf.length);
-            os.write(buf, 0, buf.length);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-
-    private byte[] createRequest() {
-        try {
-            String packageName = PACKAGE_NAME;
-            int baseLen;
-    
-            ByteArrayOutputStream os = new ByteArrayOutputStream();
-            os.write(10);
-            writeString(os, mLoginInfo.get("Auth"));
-            os.write(16);
-            os.write(1);
-            os.write(24);
-            writeInt32(os, 2009011);
-            os.write(34);
-            writeString(os, mDeviceId);
-            os.write(42);
-            writeString(os, "passion:9");
-            os.write(50);
-            writeString(os, "en");
-            os.write(58);
-            writeString(os, "us");
-            os.write(66);
-            writeString(os, "DoCoMo");
-            os.write(74);
-            writeString(os, "DoCoMo");
-            os.write(82);
-            writeString(os, "44010");
-            os.write(90);
-            writeString(os, "44010");
-            baseLen = os.size() + 1 - 3;    // reduce three bytes - one marker (10) plus 2 bytes for baseLen
-            os.write(19);
-            os.write(82);
-            writeInt32(os, packageName.length() + 2);
-            os.write(10);
-            writeString(os, packageName);
-            os.write(20);
-            os.flush();
-            os.close();
-    
-            ByteArrayOutputStream request = new ByteArrayOutputStream();
-            request.write(10);
-            writeInt32(request, baseLen + 2);
-            request.write(os.toByteArray(), 0, os.size());
-            return request.toByteArray();
+            });
         } catch (Exception e) {
-            e.printStackTrace();
+            reportError(e);
         }
-        return null;
     }
 
-    private void apiRequest() {
-        try {
-            final HttpPost request = new HttpPost(URL_DOWNLOAD);
-            request.addHeader("Content-type", "application/x-www-form-urlencoded");
-            request.addHeader("User-Agent", "Android-Market/2");
-            request.addHeader("Cookie", "ANDROIDSECURE=" + mLoginInfo.get("Auth"));
-
-            final List<NameValuePair> params = new ArrayList<NameValuePair>(4);
-            params.add(new BasicNameValuePair("version", String.valueOf(PROTOCOL_VERSION)));
-            String request64 = Base64.encodeToString(createRequest(), Base64.URL_SAFE);
-            params.add(new BasicNameValuePair("request", request64));
-
-            request.setEntity(new UrlEncodedFormEntity(params, HTTP.UTF_8));
-            final HttpResponse response = mClient.execute(request);
-            final HttpEntity entity = response.getEntity();
-            if (response.getStatusLine().getStatusCode() >= 400) {
-                updateMessage(R.string.error_download, response.getStatusLine().getReasonPhrase());
-                return;
-            }
-
-            String downloadUrl = null;
-            String marketDa = null;
-            final InputStream in = entity.getContent();
-            final GZIPInputStream zis = new GZIPInputStream(new BufferedInputStream(in));
-
-            // Response is in ProtBuf format. But use a easy way to extract string here
-            final String resString = streamToString(zis);
-            Matcher m = PATTERN_URL.matcher(resString);
-            if (m.find()) {
-                downloadUrl = m.group();
-            }
-
-            m = PATTERN_MARKETDA.matcher(resString);
-            if (m.find()) {
-                marketDa = m.group(1);
-            }
-            if (downloadUrl == null || marketDa == null) {
-                updateMessage(R.string.error_download, "Missing URL or MarketDA in response");
-                return;
-            }
-            updateMessage(R.string.download_package, null);
-            download(downloadUrl, marketDa);
-        } catch (Exception e) {
+    private void reportError(Exception e) {
+        if (e instanceof InstallerEngine.CancelledException) {
+            // We are going away; nobody is looking.
+            return;
+        } else if (e instanceof InstallerEngine.DeadlineException) {
+            updateMessage(R.string.error_timeout, e.getMessage());
+        } else {
             updateMessage(R.string.error_download, e.toString());
         }
     }
 
-    private void download(String urlstr, String marketDa) {
-        try {
-            final HttpGet request = new HttpGet(urlstr);
-            request.addHeader("User-Agent", "Android-Market/2");
-            request.addHeader("Cookie", "MarketDA=" + marketDa);
-
-            final HttpResponse response = mClient.execute(request);
-            if (response.getStatusLine().getStatusCode() != 200) {
-                updateMessage(R.string.error_download, response.getStatusLine().getReasonPhrase());
-                return;
-            }
-
-            final File file = new File(Environment.getExternalStorageDirectory(), PACKAGE_NAME + ".apk");
-            if (file.exists()) {
-                file.delete();
-            }
-            final FileOutputStream out = new FileOutputStream(file);
-            final InputStream in = response.getEntity().getContent();
-            long total = response.getEntity().getContentLength();
-            long len = total;
-            try {
-                final byte[] buf = new byte[BUFSIZE];
-                while (len > 0) {
-                    int rsz = in.read(buf);
-                    if (rsz < 0) {
-                        break;
-                    }
-                    out.write(buf, 0, rsz);
-                    len -= rsz;
-                    updateProgress((int)(100 * (total - len) / total));
-                }
-                if (len != 0) {
-                    updateMessage(R.string.error_download, "Insufficient Response");
-                    return;
-                }
-
-                updateMessage(R.string.install_package, null);
-                final Intent intent = new Intent(Intent.ACTION_VIEW); 
-                intent.setDataAndType(Uri.fromFile(file),  "application/vnd.android.package-archive"); 
-                startActivity(intent);
-                finish();
-            } finally {
-                in.close();
-                out.flush();
-                out.close();
-            }
-        } catch (Exception e) {
-            updateMessage(R.string.error_download, e.toString());
-        }
+    private void install(File file) {
+        final Intent intent = new Intent(Intent.ACTION_VIEW); 
+        intent.setDataAndType(Uri.fromFile(file),  "application/vnd.android.package-archive"); 
+        startActivity(intent);
     }
 }
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2012 Tatsuo Nagamatsu <nagamatu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.nagamatu.radiko.installer;
+
+/**
+ * The buffer of a download loop, sized to the measured throughput: about
+ * {@link #TARGET_NANOS} worth of data per read, so that fast links get
+ * large reads (fewer calls, fewer progress updates) and slow ones do not
+ * tie up memory.  Buffers come from, and go back to, a {@link BufferPool}.
+ *
+ * <pre>
+ *   final byte[] buf = rb.get();
+ *   n = in.read(buf);
+ *   ... use buf ...
+ *   rb.onRead(n);   // may switch to another buffer
+ * </pre>
+ */
+final class ReadBuffer {
+    private static final int INITIAL_SIZE = 16 * 1024;
+    private static final long TARGET_NANOS = 20 * 1000 * 1000L;
+    /** Throughput is measured over windows of at least this long. */
+    private static final long WINDOW_NANOS = 100 * 1000 * 1000L;
+
+    private final BufferPool mPool;
+    private byte[] mBuffer;
+    private long mWindowStart = System.nanoTime();
+    private long mWindowBytes;
+
+    public ReadBuffer(BufferPool pool) {
+        mPool = pool;
+        mBuffer = pool.acquire(INITIAL_SIZE);
+    }
+
+    public byte[] get() {
+        return mBuffer;
+    }
+
+    /** {@code bytes} were read into the current buffer and are done with. */
+    public void onRead(int bytes) {
+        if (bytes > 0) {
+            mWindowBytes += bytes;
+        }
+        final long now = System.nanoTime();
+        final long elapsed = now - mWindowStart;
+        if (elapsed < WINDOW_NANOS) {
+            return;
+        }
+        final long wanted = mWindowBytes * TARGET_NANOS / elapsed;
+        mWindowStart = now;
+        mWindowBytes = 0;
+
+        final int max = mPool.getMaxSize();
+        int size = mBuffer.length;
+        if (size > max) {
+            size = max;
+        } else if (wanted > size && size < max) {
+            // Grow one step per window, so a burst does not jump straight
+            // to the largest size.
+            size *= 2;
+        } else if (wanted < size / 4 && size > BufferPool.MIN_SIZE) {
+            size /= 2;
+        }
+        if (size != mBuffer.length) {
+            mPool.release(mBuffer);
+            mBuffer = mPool.acquire(size);
+        }
+    }
+
+    /** Give the buffer back to the pool; the instance must not be used afterwards. */
+    public void release() {
+        mPool.release(mBuffer);
+        mBuffer = null;
+    }
+}
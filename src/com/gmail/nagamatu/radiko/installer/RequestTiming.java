@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2012 Tatsuo Nagamatsu <nagamatu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.nagamatu.radiko.installer;
+
+/**
+ * How long the connection phases of one request took, in nanoseconds, or
+ * -1 for phases that did not happen, e.g. because a pooled connection was
+ * reused.
+ *
+ * <p>Connections are opened deep inside the HTTP client, so the transport
+ * {@link #attach}es the request's timing to the calling thread for the
+ * duration of {@link HttpTransport#execute}, and the socket factories
+ * record into {@link #current()}.
+ */
+final class RequestTiming {
+    private static final ThreadLocal<RequestTiming> sCurrent = new ThreadLocal<RequestTiming>();
+
+    public volatile long dnsNanos = -1;
+    public volatile long connectNanos = -1;
+    public volatile long tlsNanos = -1;
+
+    /** Make {@code timing} the one recorded into on this thread. */
+    static void attach(RequestTiming timing) {
+        sCurrent.set(timing);
+    }
+
+    static void detach() {
+        sCurrent.remove();
+    }
+
+    /** @return the timing of the request being executed on this thread, or null. */
+    static RequestTiming current() {
+        return sCurrent.get();
+    }
+
+    /** @return true if a new connection was opened for the request. */
+    public boolean isNewConnection() {
+        return connectNanos >= 0;
+    }
+}
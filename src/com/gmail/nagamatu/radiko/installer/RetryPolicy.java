@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2012 Tatsuo Nagamatsu <nagamatu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.nagamatu.radiko.installer;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.Random;
+
+/**
+ * How often, and after how long, a failed phase is tried again.
+ *
+ * <p>Delays grow exponentially from {@link #baseDelayMillis} up to
+ * {@link #maxDelayMillis}, and each one is drawn uniformly below that
+ * bound ("full jitter"), so that many clients failing together do not
+ * come back together.  A Retry-After sent by the server is honored if it
+ * is within the bound.
+ *
+ * <p>Which failures are retried depends on whether the operation is
+ * idempotent: one that may have reached the server is only repeated if
+ * repeating it is harmless, while one the server cannot have acted on
+ * (no connection, 429, 503) is always retried.
+ */
+final class RetryPolicy {
+    /** Fail on the first error. */
+    public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0);
+
+    private static final Random sRandom = new Random();
+
+    public final int maxAttempts;
+    public final long baseDelayMillis;
+    public final long maxDelayMillis;
+
+    /** @param maxAttempts the number of tries including the first */
+    public RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * @param attempt    the number of attempts made so far, from 1
+     * @param idempotent whether the operation may safely run twice
+     * @return whether {@code failure} of attempt {@code attempt} is worth
+     *         another try.
+     */
+    public boolean shouldRetry(IOException failure, int attempt, boolean idempotent) {
+        return attempt < maxAttempts && isRetryable(failure, idempotent);
+    }
+
+    /** @return how long to wait before attempt {@code attempt} + 1. */
+    public long getDelay(IOException failure, int attempt) {
+        final long bound = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt - 1, 20));
+        if (failure instanceof HttpTransport.StatusException) {
+            final long retryAfter = ((HttpTransport.StatusException)failure).getRetryAfterMillis();
+            if (retryAfter >= 0 && retryAfter <= maxDelayMillis) {
+                return retryAfter;
+            }
+        }
+        if (bound <= 0) {
+            return 0;
+        }
+        synchronized (sRandom) {
+            return (long)(sRandom.nextDouble() * bound);
+        }
+    }
+
+    static boolean isRetryable(IOException e, boolean idempotent) {
+        if (e instanceof InstallerEngine.CancelledException || e instanceof InstallerEngine.AuthException) {
+            return false;
+        }
+        if (e instanceof InstallerEngine.DeadlineException) {
+            switch (((InstallerEngine.DeadlineException)e).getKind()) {
+                case InstallerEngine.DeadlineException.CONNECT:
+                    return true;
+                case InstallerEngine.DeadlineException.READ:
+                    return idempotent;
+                default:
+                    return false;
+            }
+        }
+        if (e instanceof HttpTransport.StatusException) {
+            final int status = ((HttpTransport.StatusException)e).getStatus();
+            if (status == 429 || status == 503) {
+                return true;
+            }
+            return idempotent && status >= 500;
+        }
+        if (e instanceof ConnectException || e instanceof NoRouteToHostException
+                || e instanceof UnknownHostException) {
+            return true;
+        }
+        // Reset connections, truncated bodies, corrupt downloads...
+        return idempotent;
+    }
+}
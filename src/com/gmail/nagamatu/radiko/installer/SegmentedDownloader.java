@@ -0,0 +1,447 @@
+/*
+ * Copyright (C) 2012 Tatsuo Nagamatsu <nagamatu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gmail.nagamatu.radiko.installer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Fetches one file over several concurrent Range requests.
+ *
+ * <p>The first request asks for the whole file.  Every other worker starts
+ * by splitting the largest remaining range in two and fetching the upper
+ * half; workers which finish early do the same, so slow segments are
+ * rebalanced automatically.  A worker claims the bytes it is about to
+ * write, and a thief splits only the unclaimed rest of a range, both under
+ * one lock, so no byte is fetched or counted twice and
+ * {@link #getContiguousLength()} never sees a range in transit; reading
+ * and writing the data runs outside it.
+ */
+class SegmentedDownloader {
+    /** Ranges are never split into halves smaller than this. */
+    private static final long MIN_SPLIT = 256 * 1024;
+
+    private final HttpTransport mTransport;
+    private final String mUrl;
+    private final String mMarketDa;
+    private final DownloadSink mSink;
+    private final Segment[] mSegments;
+    private final BufferPool mBufferPool = BufferPool.getDefault();
+    /** Guards the ranges of all segments. */
+    private final Object mLock = new Object();
+
+    private volatile boolean mFailed;
+    /** The failure that brought the download down, not the aborts it caused. */
+    private final AtomicReference<IOException> mCause = new AtomicReference<IOException>();
+    private ProgressReporter mProgress;
+    private Metrics mMetrics = new Metrics();
+    private int mConnectTimeout;
+    private int mReadTimeout;
+    private long mLength = -1;
+    private String mETag;
+    private String mLastModified;
+
+    /** The range {@code [position, end)} which is still to be written. */
+    private static class Segment {
+        /** Written up to here. */
+        long position;
+        /** Taken by the owner up to here, being written. */
+        long claimed;
+        long end;
+        volatile HttpRequest request;
+
+        long unclaimed() {
+            return end - claimed;
+        }
+    }
+
+    public SegmentedDownloader(HttpTransport transport, String url, String marketDa, DownloadSink sink, int segments) {
+        mTransport = transport;
+        mUrl = url;
+        mMarketDa = marketDa;
+        mSink = sink;
+        mSegments = new Segment[Math.max(1, segments)];
+        for (int i = 0; i < mSegments.length; i++) {
+            mSegments[i] = new Segment();
+        }
+    }
+
+    public void setMetrics(Metrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /** Timeouts for every request, as for {@link HttpRequest#setTimeouts}. */
+    public void setTimeouts(int connectMillis, int readMillis) {
+        mConnectTimeout = connectMillis;
+        mReadTimeout = readMillis;
+    }
+
+    /**
+     * Download the whole file into the sink, replacing its contents.  The
+     * sink is closed on return.
+     *
+     * @throws IOException if any segment fails; the other segments are
+     *         aborted and {@link #getContiguousLength()} tells how much of
+     *         the file is usable.
+     */
+    public void download(ProgressReporter progress) throws IOException {
+        try {
+            fetchAll(progress);
+        } finally {
+            mSink.close();
+        }
+    }
+
+    private void fetchAll(ProgressReporter progress) throws IOException {
+        mProgress = progress;
+        final Segment first = mSegments[0];
+        final HttpRequest probe = newRequest(0, -1);
+        first.request = probe;
+        final long start = System.nanoTime();
+        final HttpTransport.Response response = mTransport.execute(probe);
+        final long headers = System.nanoTime();
+        final int status = response.getStatus();
+
+        boolean splittable = false;
+        if (status == 206) {
+            final long[] range = parseContentRange(response.getHeader("Content-Range"));
+            if (range == null || range[0] != 0) {
+                probe.abort();
+                throw new IOException("Unexpected Content-Range");
+            }
+            mLength = range[2];
+            splittable = mLength > 0;
+        } else if (status == 200) {
+            mLength = response.getContentLength();
+        } else {
+            probe.abort();
+            throw HttpTransport.StatusException.from(response);
+        }
+        if (mLength <= 0) {
+            probe.abort();
+            throw new IOException("Insufficient Response");
+        }
+        mETag = response.getHeader("ETag");
+        mLastModified = response.getHeader("Last-Modified");
+        synchronized (mLock) {
+            first.end = mLength;
+        }
+        mProgress.start(mLength, 0);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(mSegments.length);
+        try {
+            mSink.preallocate(mLength);
+
+            final List<Future<Void>> futures = new ArrayList<Future<Void>>(mSegments.length);
+            futures.add(executor.submit(new Worker(first, response, start, headers)));
+            if (splittable) {
+                for (int i = 1; i < mSegments.length; i++) {
+                    futures.add(executor.submit(new Worker(mSegments[i], null, 0, 0)));
+                }
+            }
+            // Wait for every worker, even after a failure, so that nothing
+            // writes to the file once it has been synced and closed.
+            IOException error = null;
+            for (Future<Void> f : futures) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    if (error == null) {
+                        error = cause instanceof IOException ? (IOException)cause : new IOException(cause.toString());
+                    }
+                } catch (InterruptedException e) {
+                    abort();
+                    if (error == null) {
+                        error = new IOException("Interrupted");
+                    }
+                }
+            }
+            if (mCause.get() != null) {
+                error = mCause.get();
+            } else if (error == null && mFailed) {
+                // Cancelled; the workers stopped without an error of their own.
+                error = new InterruptedIOException("Download cancelled");
+            }
+            if (error != null) {
+                throw error;
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public long getLength() {
+        return mLength;
+    }
+
+    public String getETag() {
+        return mETag;
+    }
+
+    public String getLastModified() {
+        return mLastModified;
+    }
+
+    /**
+     * @return the number of bytes from the start of the file which are
+     *         known to have been written, i.e. the offset of the first gap.
+     */
+    public long getContiguousLength() {
+        synchronized (mLock) {
+            long min = mLength;
+            for (Segment s : mSegments) {
+                if (s.position < s.end && s.position < min) {
+                    min = s.position;
+                }
+            }
+            return Math.max(0, min);
+        }
+    }
+
+    /**
+     * Abort every segment from another thread; {@link #download} fails
+     * soon after.
+     */
+    public void cancel() {
+        abort();
+    }
+
+    private void abort() {
+        mFailed = true;
+        for (Segment s : mSegments) {
+            final HttpRequest request = s.request;
+            if (request != null) {
+                request.abort();
+            }
+        }
+    }
+
+    private HttpRequest newRequest(long first, long last) {
+        final HttpRequest request = HttpRequest.get(mUrl);
+        request.setTimeouts(mConnectTimeout, mReadTimeout);
+        request.addHeader("User-Agent", "Android-Market/2");
+        request.addHeader("Cookie", "MarketDA=" + mMarketDa);
+        request.addHeader("Range", "bytes=" + first + "-" + (last >= 0 ? String.valueOf(last) : ""));
+        final String validator = mETag != null && !mETag.startsWith("W/") ? mETag : mLastModified;
+        if (validator != null) {
+            request.addHeader("If-Range", validator);
+        }
+        return request;
+    }
+
+    /**
+     * Take the upper half of the largest remaining range into {@code own}.
+     *
+     * @return false if nothing is left that is worth splitting.
+     */
+    private boolean steal(Segment own) {
+        synchronized (mLock) {
+            if (mFailed) {
+                return false;
+            }
+            Segment victim = null;
+            long best = 2 * MIN_SPLIT;
+            for (Segment s : mSegments) {
+                final long unclaimed = s.unclaimed();
+                if (s != own && unclaimed >= best) {
+                    best = unclaimed;
+                    victim = s;
+                }
+            }
+            if (victim == null) {
+                return false;
+            }
+            final long mid = victim.claimed + best / 2;
+            own.position = mid;
+            own.claimed = mid;
+            own.end = victim.end;
+            victim.end = mid;
+            return true;
+        }
+    }
+
+    /**
+     * Take up to {@code len} bytes from the position of {@code s} for its
+     * owner to write.
+     *
+     * @return the number of bytes taken; 0 once a thief has the rest.
+     */
+    private int claim(Segment s, int len) {
+        synchronized (mLock) {
+            final int n = (int)Math.max(0, Math.min(len, s.end - s.position));
+            s.claimed = s.position + n;
+            return n;
+        }
+    }
+
+    /** Record that the bytes claimed in {@code s} have been written. */
+    private void advance(Segment s) {
+        synchronized (mLock) {
+            s.position = s.claimed;
+        }
+    }
+
+    private long getPosition(Segment s) {
+        synchronized (mLock) {
+            return s.position;
+        }
+    }
+
+    private long getEnd(Segment s) {
+        synchronized (mLock) {
+            return s.end;
+        }
+    }
+
+    /**
+     * Copy the body of {@code response} into the file until the segment's
+     * (possibly shrinking) end is reached.
+     *
+     * @param start   when the request was sent, for the metrics
+     * @param headers when its response headers were in
+     */
+    private void fetch(Segment s, HttpRequest request, HttpTransport.Response response, long requestedEnd,
+            long start, long headers) throws IOException {
+        final InputStream in = response.getBody();
+        final Metrics.ReadMeter meter = mMetrics.readMeter(Metrics.PHASE_DOWNLOAD);
+        final ReadBuffer readBuffer = new ReadBuffer(mBufferPool);
+        boolean drained = false;
+        try {
+            while (!mFailed) {
+                final long pos = getPosition(s);
+                final long end = getEnd(s);
+                if (pos >= end) {
+                    drained = end == requestedEnd;
+                    break;
+                }
+                final byte[] buf = readBuffer.get();
+                final long before = System.nanoTime();
+                final int rsz = in.read(buf, 0, (int)Math.min(buf.length, requestedEnd - pos));
+                meter.read(System.nanoTime() - before, rsz);
+                if (rsz < 0) {
+                    throw new IOException("Insufficient Response");
+                }
+                // A thief may have taken part of the range while we were
+                // blocked; only what is still ours is written and counted.
+                final int n = claim(s, rsz);
+                if (n <= 0) {
+                    break;
+                }
+                mSink.write(ByteBuffer.wrap(buf, 0, n), pos);
+                advance(s);
+                mProgress.add(n);
+                readBuffer.onRead(rsz);
+            }
+        } finally {
+            readBuffer.release();
+            if (drained) {
+                response.close();
+            } else {
+                // Range was shortened or the download failed; the rest of
+                // the body is not wanted.
+                request.abort();
+            }
+            mMetrics.recordRequest(Metrics.PHASE_DOWNLOAD, request, start, headers, System.nanoTime());
+        }
+    }
+
+    private class Worker implements Callable<Void> {
+        private final Segment mSegment;
+        private final HttpTransport.Response mResponse;
+        private final long mStart;
+        private final long mHeaders;
+
+        Worker(Segment segment, HttpTransport.Response response, long start, long headers) {
+            mSegment = segment;
+            mResponse = response;
+            mStart = start;
+            mHeaders = headers;
+        }
+
+        public Void call() throws IOException {
+            try {
+                if (mResponse != null) {
+                    fetch(mSegment, mSegment.request, mResponse, mLength, mStart, mHeaders);
+                }
+                while (steal(mSegment)) {
+                    final long first = getPosition(mSegment);
+                    final long end = getEnd(mSegment);
+                    final HttpRequest request = newRequest(first, end - 1);
+                    mSegment.request = request;
+                    final long start = System.nanoTime();
+                    final HttpTransport.Response response = mTransport.execute(request);
+                    final long headers = System.nanoTime();
+                    final int status = response.getStatus();
+                    final long[] range = parseContentRange(response.getHeader("Content-Range"));
+                    if (status != 206 || range == null || range[0] != first) {
+                        request.abort();
+                        if (status >= 400) {
+                            throw HttpTransport.StatusException.from(response);
+                        }
+                        throw new IOException("Range not honored: " + status + " " + response.getReason());
+                    }
+                    fetch(mSegment, request, response, end, start, headers);
+                }
+            } catch (IOException e) {
+                if (!mFailed) {
+                    mCause.compareAndSet(null, e);
+                }
+                abort();
+                throw e;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Parse a "bytes first-last/length" Content-Range value.
+     *
+     * @return {first, last, length} with length -1 if it was "*", or null
+     *         if the value is missing or malformed.
+     */
+    static long[] parseContentRange(String value) {
+        if (value == null || !value.startsWith("bytes ")) {
+            return null;
+        }
+        final int dash = value.indexOf('-');
+        final int slash = value.indexOf('/');
+        if (dash < 0 || slash < dash) {
+            return null;
+        }
+        try {
+            final String length = value.substring(slash + 1).trim();
+            return new long[] {
+                Long.parseLong(value.substring(6, dash).trim()),
+                Long.parseLong(value.substring(dash + 1, slash).trim()),
+                "*".equals(length) ? -1 : Long.parseLong(length),
+            };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2012 Tatsuo Nagamatsu <nagamatu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.nagamatu.radiko.installer;
+
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+/**
+ * Socket and connection settings for an HttpClient.
+ *
+ * <p>Kernel socket buffers ({@link #receiveBufferSize},
+ * {@link #sendBufferSize}) are applied by {@link MySSLSocketFactory} before
+ * connecting, so that the TCP window scale is negotiated for them; the
+ * rest goes into the client's HttpParams.
+ */
+final class TransportProfile {
+    /** Platform defaults, for short request/response exchanges. */
+    public static final TransportProfile DEFAULT = new TransportProfile(0, 0, 8 * 1024, true, true,
+            30 * 1000, 20 * 1000, 60 * 1000);
+
+    /**
+     * Large transfers over links with a high bandwidth-delay product:
+     * big receive buffers so the window never limits throughput, Nagle off
+     * so small requests (Range GETs) go out at once, and no stale check,
+     * which costs a blocking read per reused connection; keep-alive is
+     * kept shorter than typical server idle timeouts instead, and a stale
+     * connection is caught by the client's retry handler, which resends
+     * only requests without a body.
+     */
+    public static final TransportProfile BULK = new TransportProfile(512 * 1024, 64 * 1024, 32 * 1024, true,
+            false, 20 * 1000, 20 * 1000, 60 * 1000);
+
+    /** SO_RCVBUF in bytes, or 0 to leave the platform default. */
+    final int receiveBufferSize;
+    /** SO_SNDBUF in bytes, or 0 to leave the platform default. */
+    final int sendBufferSize;
+    /** Size of HttpClient's own buffers on top of the socket. */
+    final int httpBufferSize;
+    final boolean tcpNoDelay;
+    final boolean staleCheck;
+    /** How long an idle connection is kept unless the server says otherwise. */
+    final long keepAliveMillis;
+    final int connectTimeoutMillis;
+    final int soTimeoutMillis;
+
+    public TransportProfile(int receiveBufferSize, int sendBufferSize, int httpBufferSize, boolean tcpNoDelay,
+            boolean staleCheck, long keepAliveMillis, int connectTimeoutMillis, int soTimeoutMillis) {
+        this.receiveBufferSize = receiveBufferSize;
+        this.sendBufferSize = sendBufferSize;
+        this.httpBufferSize = httpBufferSize;
+        this.tcpNoDelay = tcpNoDelay;
+        this.staleCheck = staleCheck;
+        this.keepAliveMillis = keepAliveMillis;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.soTimeoutMillis = soTimeoutMillis;
+    }
+
+    void apply(HttpParams params) {
+        HttpConnectionParams.setTcpNoDelay(params, tcpNoDelay);
+        HttpConnectionParams.setSocketBufferSize(params, httpBufferSize);
+        HttpConnectionParams.setStaleCheckingEnabled(params, staleCheck);
+        HttpConnectionParams.setConnectionTimeout(params, connectTimeoutMillis);
+        HttpConnectionParams.setSoTimeout(params, soTimeoutMillis);
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2012 Tatsuo Nagamatsu <nagamatu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.nagamatu.radiko.installer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * {@link HttpTransport} on the platform's {@link HttpURLConnection}, which
+ * does its own connection pooling.  TLS goes through the same socket
+ * factory, and so the same session cache, as {@link MySSLSocketFactory}.
+ * Whether a pooled connection was reused cannot be told from outside, so
+ * the {@link RequestTiming} of its requests stays empty.
+ */
+class UrlConnectionTransport implements HttpTransport {
+    private static final HostnameVerifier ALLOW_ALL = new HostnameVerifier() {
+        public boolean verify(String hostname, SSLSession session) {
+            return true;
+        }
+    };
+
+    private final TransportProfile mProfile;
+    private final SSLSocketFactory mSslFactory;
+
+    public UrlConnectionTransport(int maxPerRoute, TransportProfile profile) throws IOException {
+        mProfile = profile;
+        try {
+            mSslFactory = MySSLSocketFactory.getSharedFactory();
+        } catch (Exception e) {
+            throw new IOException("TLS unavailable: " + e);
+        }
+        // The pool size is process wide and read when the pool is created;
+        // this only helps if nothing has used HttpURLConnection yet.
+        final int current = Integer.getInteger("http.maxConnections", 5);
+        if (maxPerRoute > current) {
+            System.setProperty("http.maxConnections", String.valueOf(maxPerRoute));
+        }
+    }
+
+    public Response execute(HttpRequest request) throws IOException {
+        final HttpURLConnection conn = (HttpURLConnection)new URL(request.getUrl()).openConnection();
+        if (conn instanceof HttpsURLConnection) {
+            ((HttpsURLConnection)conn).setSSLSocketFactory(mSslFactory);
+            ((HttpsURLConnection)conn).setHostnameVerifier(ALLOW_ALL);
+        }
+        conn.setConnectTimeout(request.getConnectTimeout() > 0 ? request.getConnectTimeout()
+                : mProfile.connectTimeoutMillis);
+        conn.setReadTimeout(request.getReadTimeout() > 0 ? request.getReadTimeout() : mProfile.soTimeoutMillis);
+        conn.setUseCaches(false);
+        // Newer platforms gzip transparently, which would break Range
+        // offsets and the already gzipped API response; callers may still
+        // ask for it explicitly.
+        conn.setRequestProperty("Accept-Encoding", "identity");
+        for (int i = 0; i < request.getHeaderCount(); i++) {
+            conn.setRequestProperty(request.getHeaderName(i), request.getHeaderValue(i));
+        }
+        request.setAbortAction(new Runnable() {
+            public void run() {
+                conn.disconnect();
+            }
+        });
+
+        final byte[] body = request.getBody();
+        if (body != null) {
+            conn.setRequestMethod(request.getMethod());
+            conn.setDoOutput(true);
+            conn.setRequestProperty("Content-Type", request.getContentType());
+            conn.setFixedLengthStreamingMode(body.length);
+            final OutputStream out = conn.getOutputStream();
+            try {
+                out.write(body);
+            } finally {
+                out.close();
+            }
+        }
+        return new UrlConnectionResponse(conn, conn.getResponseCode());
+    }
+
+    /** The platform pools connections on its own terms; nothing to do. */
+    public void warm(String url, int count) {
+    }
+
+    public void shutdown() {
+    }
+
+    private static class UrlConnectionResponse implements Response {
+        private final HttpURLConnection mConn;
+        private final int mStatus;
+        private InputStream mBody;
+
+        UrlConnectionResponse(HttpURLConnection conn, int status) {
+            mConn = conn;
+            mStatus = status;
+        }
+
+        public int getStatus() {
+            return mStatus;
+        }
+
+        public String getReason() {
+            try {
+                return mConn.getResponseMessage();
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        public String getHeader(String name) {
+            return mConn.getHeaderField(name);
+        }
+
+        public long getContentLength() {
+            // getContentLength() is an int; APKs are not that big, but
+            // parse the header anyway rather than rely on it.
+            final String value = mConn.getHeaderField("Content-Length");
+            if (value == null) {
+                return -1;
+            }
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        public InputStream getBody() throws IOException {
+            if (mBody == null) {
+                InputStream in = mStatus >= 400 ? mConn.getErrorStream() : mConn.getInputStream();
+                if (in == null) {
+                    in = new ByteArrayInputStream(new byte[0]);
+                }
+                mBody = in;
+            }
+            return mBody;
+        }
+
+        public void close() throws IOException {
+            getBody().close();
+        }
+    }
+}
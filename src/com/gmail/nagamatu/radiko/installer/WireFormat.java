@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2012 Tatsuo Nagamatsu <nagamatu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gmail.nagamatu.radiko.installer;
+
+/**
+ * Constants and helpers of the protobuf wire format shared by
+ * {@link ProtoReader} and {@link ProtoWriter}.
+ */
+final class WireFormat {
+    public static final int WIRETYPE_VARINT = 0;
+    public static final int WIRETYPE_FIXED64 = 1;
+    public static final int WIRETYPE_LENGTH_DELIMITED = 2;
+    public static final int WIRETYPE_START_GROUP = 3;
+    public static final int WIRETYPE_END_GROUP = 4;
+    public static final int WIRETYPE_FIXED32 = 5;
+
+    private static final int TAG_TYPE_BITS = 3;
+    private static final int TAG_TYPE_MASK = (1 << TAG_TYPE_BITS) - 1;
+
+    private WireFormat() {
+    }
+
+    public static int makeTag(int field, int wireType) {
+        return (field << TAG_TYPE_BITS) | wireType;
+    }
+
+    public static int getTagFieldNumber(int tag) {
+        return tag >>> TAG_TYPE_BITS;
+    }
+
+    public static int getTagWireType(int tag) {
+        return tag & TAG_TYPE_MASK;
+    }
+
+    /** Map signed to unsigned so that small negative numbers stay short. */
+    public static int encodeZigZag32(int n) {
+        return (n << 1) ^ (n >> 31);
+    }
+
+    public static long encodeZigZag64(long n) {
+        return (n << 1) ^ (n >> 63);
+    }
+
+    public static int decodeZigZag32(int n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    public static long decodeZigZag64(long n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2012 Tatsuo Nagamatsu <nagamatu@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.nagamatu.radiko.installer;
+
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Checks the structure of a ZIP file as it streams by, without seeing it
+ * twice: every local file header must follow the previous entry's data
+ * exactly, and the central directory must run to a complete end record.
+ *
+ * <p>Entries are skipped using the compressed size in their local header;
+ * stored ones are checked against their CRC on the way.  Entries which only
+ * give their size in a trailing data descriptor (flag bit 3) are inflated
+ * to find their end.  An APK Signing Block between the entries and the
+ * central directory is skipped.  Anything the walk cannot follow (ZIP64, a
+ * stored entry with a data descriptor) ends the structural check without
+ * failing it; the digests still cover those files.
+ */
+class ZipStreamValidator {
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY = 0x06064b50;
+    private static final int DATA_DESCRIPTOR = 0x08074b50;
+    private static final byte[] APK_SIG_BLOCK_MAGIC = {
+        'A', 'P', 'K', ' ', 'S', 'i', 'g', ' ', 'B', 'l', 'o', 'c', 'k', ' ', '4', '2',
+    };
+
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_SIZE = 22;
+    private static final int FLAG_DATA_DESCRIPTOR = 0x08;
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+
+    /** Reading the next 4-byte signature. */
+    private static final int ST_SIGNATURE = 0;
+    private static final int ST_LOCAL = 1;
+    private static final int ST_NAME = 2;
+    private static final int ST_DATA = 3;
+    private static final int ST_INFLATE = 4;
+    private static final int ST_DESCRIPTOR = 5;
+    private static final int ST_SIG_BLOCK = 6;
+    private static final int ST_SIG_BLOCK_MAGIC = 7;
+    private static final int ST_CENTRAL = 8;
+    private static final int ST_END = 9;
+    /** Skipping mSkip bytes, then going to mNext. */
+    private static final int ST_SKIP = 10;
+    /** End record complete: the structure is fine. */
+    private static final int ST_DONE = 11;
+    /** Structure cannot be followed further; not an error. */
+    private static final int ST_UNCHECKED = 12;
+
+    private final byte[] mHeader = new byte[CENTRAL_HEADER_SIZE];
+    private final CRC32 mCrc = new CRC32();
+    private int mState = ST_SIGNATURE;
+    private int mHave;
+    private long mSkip;
+    private int mNext;
+    private long mOffset;
+    private long mRecordOffset;
+    private int mEntries;
+    private boolean mInCentral;
+    private boolean mSeenSigBlock;
+
+    private long mCompressedSize;
+    private long mExpectedCrc;
+    private boolean mCheckCrc;
+    private boolean mInflate;
+    private boolean mDescriptor;
+    private Inflater mInflater;
+    private byte[] mScratch;
+
+    /**
+     * @throws ZipException as soon as the data cannot be a valid ZIP file.
+     */
+    public void update(byte[] buf, int off, int len) throws ZipException {
+        while (len > 0) {
+            final int n;
+            switch (mState) {
+                case ST_SKIP:
+                    n = (int)Math.min(len, mSkip);
+                    mSkip -= n;
+                    if (mSkip == 0) {
+                        if (mNext == ST_DATA) {
+                            startData();
+                        } else {
+                            mState = mNext;
+                        }
+                    }
+                    break;
+                case ST_DATA:
+                    n = (int)Math.min(len, mSkip);
+                    if (mCheckCrc) {
+                        mCrc.update(buf, off, n);
+                    }
+                    mSkip -= n;
+                    if (mSkip == 0) {
+                        endData();
+                    }
+                    break;
+                case ST_INFLATE:
+                    n = inflate(buf, off, len);
+                    break;
+                case ST_DONE:
+                case ST_UNCHECKED:
+                    n = len;
+                    break;
+                default:
+                    n = record(buf, off, len);
+                    break;
+            }
+            off += n;
+            len -= n;
+            mOffset += n;
+        }
+    }
+
+    /**
+     * @throws ZipException if the stream ended before the end of central
+     *         directory record.
+     */
+    public void finish() throws ZipException {
+        if (mInflater != null) {
+            mInflater.end();
+            mInflater = null;
+        }
+        if (mState != ST_DONE && mState != ST_UNCHECKED) {
+            throw new ZipException("Truncated ZIP: ended at " + mOffset
+                    + (mInCentral ? " in the central directory" : " in entry " + mEntries));
+        }
+    }
+
+    /** @return the number of local entries walked. */
+    public int getEntries() {
+        return mEntries;
+    }
+
+    /** Accumulate the fixed-size record for the current state and act on it. */
+    private int record(byte[] buf, int off, int len) throws ZipException {
+        if (mHave == 0) {
+            mRecordOffset = mOffset;
+        }
+        int n = 0;
+        int need;
+        while (mHave < (need = recordSize())) {
+            if (n == len) {
+                return n;
+            }
+            final int c = Math.min(len - n, need - mHave);
+            System.arraycopy(buf, off + n, mHeader, mHave, c);
+            mHave += c;
+            n += c;
+        }
+        mHave = 0;
+        switch (mState) {
+            case ST_SIGNATURE:
+                signature();
+                break;
+            case ST_LOCAL:
+                localHeader();
+                break;
+            case ST_DESCRIPTOR:
+                mState = ST_SIGNATURE;
+                break;
+            case ST_SIG_BLOCK:
+                // The size counts everything after this field: the pairs,
+                // a second copy of the size and the magic.
+                final long size = getLong(0);
+                if (size < 8 + APK_SIG_BLOCK_MAGIC.length) {
+                    throw new ZipException("Bad APK Signing Block at " + mRecordOffset);
+                }
+                skip(size - APK_SIG_BLOCK_MAGIC.length, ST_SIG_BLOCK_MAGIC);
+                break;
+            case ST_SIG_BLOCK_MAGIC:
+                for (int i = 0; i < APK_SIG_BLOCK_MAGIC.length; i++) {
+                    if (mHeader[i] != APK_SIG_BLOCK_MAGIC[i]) {
+                        throw new ZipException("Bad APK Signing Block before " + mRecordOffset);
+                    }
+                }
+                mState = ST_SIGNATURE;
+                break;
+            case ST_CENTRAL:
+                skip(getShort(24) + getShort(26) + getShort(28), ST_SIGNATURE);
+                break;
+            case ST_END:
+                skip(getShort(16), ST_DONE);
+                break;
+        }
+        return n;
+    }
+
+    /** @return the size of the record being read, past its signature. */
+    private int recordSize() {
+        switch (mState) {
+            case ST_LOCAL:
+                return LOCAL_HEADER_SIZE - 4;
+            case ST_DESCRIPTOR:
+                // crc and sizes, optionally preceded by a signature; the
+                // first word tells which.
+                return mHave < 4 ? 4 : getInt(0) == DATA_DESCRIPTOR ? 16 : 12;
+            case ST_SIG_BLOCK:
+                return 8;
+            case ST_SIG_BLOCK_MAGIC:
+                return APK_SIG_BLOCK_MAGIC.length;
+            case ST_CENTRAL:
+                return CENTRAL_HEADER_SIZE - 4;
+            case ST_END:
+                return END_SIZE - 4;
+            default:
+                return 4;
+        }
+    }
+
+    private void signature() throws ZipException {
+        final int sig = getInt(0);
+        if (sig == LOCAL_HEADER && !mInCentral) {
+            mState = ST_LOCAL;
+        } else if (sig == CENTRAL_HEADER && mEntries > 0) {
+            mInCentral = true;
+            mState = ST_CENTRAL;
+        } else if (sig == END_OF_CENTRAL_DIRECTORY && mInCentral) {
+            mState = ST_END;
+        } else if (sig == ZIP64_END_OF_CENTRAL_DIRECTORY && mInCentral) {
+            mState = ST_UNCHECKED;
+        } else if (mEntries == 0) {
+            throw new ZipException("Not a ZIP file");
+        } else if (!mInCentral && !mSeenSigBlock) {
+            // No signature here: this is the low half of an APK Signing
+            // Block size.
+            mSeenSigBlock = true;
+            mHave = 4;
+            mState = ST_SIG_BLOCK;
+        } else {
+            throw new ZipException("Bad ZIP record at " + mRecordOffset);
+        }
+    }
+
+    private void localHeader() throws ZipException {
+        // Offsets are relative to the end of the signature.
+        final int flags = getShort(2);
+        final int method = getShort(4);
+        mExpectedCrc = getInt(10) & 0xffffffffL;
+        mCompressedSize = getInt(14) & 0xffffffffL;
+        final int nameLen = getShort(22);
+        final int extraLen = getShort(24);
+        mDescriptor = (flags & FLAG_DATA_DESCRIPTOR) != 0;
+        mInflate = false;
+        mEntries++;
+        if (nameLen == 0) {
+            throw new ZipException("ZIP entry without a name at " + mRecordOffset);
+        }
+        if (mCompressedSize == 0xffffffffL) {
+            mState = ST_UNCHECKED;
+            return;
+        }
+        if (mDescriptor && mCompressedSize == 0) {
+            if (method != METHOD_DEFLATED) {
+                mState = ST_UNCHECKED;
+                return;
+            }
+            mInflate = true;
+        }
+        mCheckCrc = method == METHOD_STORED && !mDescriptor;
+        mCrc.reset();
+        skip(nameLen + extraLen, ST_DATA);
+    }
+
+    private void skip(long n, int next) throws ZipException {
+        if (n > 0) {
+            mSkip = n;
+            mNext = next;
+            mState = ST_SKIP;
+        } else if (next == ST_DATA) {
+            startData();
+        } else {
+            mState = next;
+        }
+    }
+
+    private void startData() throws ZipException {
+        if (mInflate) {
+            if (mInflater == null) {
+                mInflater = new Inflater(true);
+                mScratch = new byte[8192];
+            }
+            mInflater.reset();
+            mState = ST_INFLATE;
+        } else {
+            mSkip = mCompressedSize;
+            mState = ST_DATA;
+            if (mSkip == 0) {
+                endData();
+            }
+        }
+    }
+
+    private void endData() throws ZipException {
+        if (mCheckCrc && mCrc.getValue() != mExpectedCrc) {
+            throw new ZipException("CRC mismatch in entry at " + mRecordOffset);
+        }
+        mState = mDescriptor ? ST_DESCRIPTOR : ST_SIGNATURE;
+    }
+
+    private int inflate(byte[] buf, int off, int len) throws ZipException {
+        mInflater.setInput(buf, off, len);
+        try {
+            while (!mInflater.finished() && !mInflater.needsInput()) {
+                if (mInflater.inflate(mScratch) == 0 && mInflater.needsDictionary()) {
+                    throw new ZipException("Bad deflate data in entry at " + mRecordOffset);
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException("Bad deflate data in entry at " + mRecordOffset + ": " + e.getMessage());
+        }
+        if (!mInflater.finished()) {
+            return len;
+        }
+        endData();
+        return len - mInflater.getRemaining();
+    }
+
+    private int getShort(int pos) {
+        return (mHeader[pos] & 0xff) | (mHeader[pos + 1] & 0xff) << 8;
+    }
+
+    private int getInt(int pos) {
+        return getShort(pos) | getShort(pos + 2) << 16;
+    }
+
+    private long getLong(int pos) {
+        return (getInt(pos) & 0xffffffffL) | (long)getInt(pos + 4) << 32;
+    }
+}